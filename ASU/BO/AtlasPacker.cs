@@ -0,0 +1,158 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Packs frames into a single atlas with the skyline bottom-left method. The atlas is a fixed width, grows downwards
+    /// as far as it needs to, and the skyline only ever has as many segments as there are frames side by side, so
+    /// packing stays quick for sheets of many thousands of frames.
+    /// </summary>
+    public class AtlasPacker
+    {
+        private int width;
+        // The top edge of everything placed so far, left to right, as (x, y, width) runs.
+        private List<Rectangle> skyline = new List<Rectangle>();
+
+        private AtlasPacker(int width)
+        {
+            this.width = width;
+            this.skyline.Add(new Rectangle(0, 0, width, 0));
+        }
+
+        /// <summary>
+        /// Returns where each size goes, in the same order as given, with padding pixels left clear to the right of and
+        /// below each one. The atlas size is trimmed to what was used.
+        /// </summary>
+        public static Point[] Pack(List<Size> sizes, int padding, out Size atlasSize)
+        {
+            Point[] locations = new Point[sizes.Count];
+            List<int> order = new List<int>();
+            long area = 0;
+            int widest = 1;
+            int side = 1;
+            AtlasPacker packer;
+            int usedWidth = 0;
+            int usedHeight = 0;
+
+            for (int i = 0; i < sizes.Count; i++)
+            {
+                order.Add(i);
+                area += (long)(sizes[i].Width + padding) * (sizes[i].Height + padding);
+                widest = Math.Max(widest, sizes[i].Width + padding);
+            }
+
+            // Roughly square, to the next power of two, so engines that want one get one wide at least.
+            while ((long)side * side < area)
+            {
+                side *= 2;
+            }
+            packer = new AtlasPacker(Math.Max(side, widest));
+
+            // Tallest first leaves the flattest skyline.
+            order.Sort(delegate(int a, int b)
+            {
+                int compared = sizes[b].Height.CompareTo(sizes[a].Height);
+
+                return compared != 0 ? compared : sizes[b].Width.CompareTo(sizes[a].Width);
+            });
+
+            foreach (int i in order)
+            {
+                locations[i] = packer.Place(sizes[i].Width + padding, sizes[i].Height + padding);
+                usedWidth = Math.Max(usedWidth, locations[i].X + sizes[i].Width);
+                usedHeight = Math.Max(usedHeight, locations[i].Y + sizes[i].Height);
+            }
+
+            atlasSize = new Size(Math.Max(1, usedWidth), Math.Max(1, usedHeight));
+            return locations;
+        }
+
+        private Point Place(int width, int height)
+        {
+            int bestIndex = -1;
+            int bestTop = int.MaxValue;
+            int bestY = 0;
+            int bestSegmentWidth = int.MaxValue;
+            Point location;
+
+            for (int i = 0; i < this.skyline.Count; i++)
+            {
+                int y;
+
+                if (this.TryFit(i, width, out y) && (y + height < bestTop || (y + height == bestTop && this.skyline[i].Width < bestSegmentWidth)))
+                {
+                    bestIndex = i;
+                    bestTop = y + height;
+                    bestY = y;
+                    bestSegmentWidth = this.skyline[i].Width;
+                }
+            }
+
+            location = new Point(this.skyline[bestIndex].X, bestY);
+            this.AddToSkyline(bestIndex, new Rectangle(location.X, bestY + height, width, 0));
+
+            return location;
+        }
+
+        /// <summary>
+        /// Whether something this wide fits with its left edge at the start of the segment, and if so how far down it
+        /// has to sit to clear every segment it spans.
+        /// </summary>
+        private bool TryFit(int index, int width, out int y)
+        {
+            int x = this.skyline[index].X;
+            int remaining = width;
+
+            y = 0;
+            if (x + width > this.width)
+            {
+                return false;
+            }
+
+            while (remaining > 0)
+            {
+                y = Math.Max(y, this.skyline[index].Y);
+                remaining -= this.skyline[index].Width;
+                index += 1;
+            }
+
+            return true;
+        }
+
+        private void AddToSkyline(int index, Rectangle segment)
+        {
+            this.skyline.Insert(index, segment);
+
+            // Cut back or remove the segments the new one now covers.
+            while (index + 1 < this.skyline.Count && this.skyline[index + 1].X < segment.Right)
+            {
+                Rectangle next = this.skyline[index + 1];
+                int covered = segment.Right - next.X;
+
+                if (covered >= next.Width)
+                {
+                    this.skyline.RemoveAt(index + 1);
+                }
+                else
+                {
+                    this.skyline[index + 1] = new Rectangle(segment.Right, next.Y, next.Width - covered, 0);
+                    break;
+                }
+            }
+
+            // Join up neighbours at the same height.
+            for (int i = 0; i + 1 < this.skyline.Count; i++)
+            {
+                if (this.skyline[i].Y == this.skyline[i + 1].Y)
+                {
+                    this.skyline[i] = new Rectangle(this.skyline[i].X, this.skyline[i].Y, this.skyline[i].Width + this.skyline[i + 1].Width, 0);
+                    this.skyline.RemoveAt(i + 1);
+                    i -= 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Buckets boxes into fixed size cells so the merge only has to test boxes which are near each other,
+    /// instead of every box against every other box.
+    /// </summary>
+    public class BoxGrid
+    {
+        private const int INT_CELL_SIZE = 64;
+
+        private Dictionary<long, List<Rectangle>> boxesByCell = new Dictionary<long, List<Rectangle>>();
+
+        public BoxGrid(List<Rectangle> boxes)
+        {
+            foreach (Rectangle box in boxes)
+            {
+                this.Add(box);
+            }
+        }
+
+        public BoxGrid(BoxGrid source)
+        {
+            foreach (long cell in source.boxesByCell.Keys)
+            {
+                this.boxesByCell.Add(cell, new List<Rectangle>(source.boxesByCell[cell]));
+            }
+        }
+
+        public void Add(Rectangle box)
+        {
+            foreach (long cell in GetCells(box))
+            {
+                if (!this.boxesByCell.ContainsKey(cell))
+                {
+                    this.boxesByCell.Add(cell, new List<Rectangle>());
+                }
+                this.boxesByCell[cell].Add(box);
+            }
+        }
+
+        public void Remove(Rectangle box)
+        {
+            foreach (long cell in GetCells(box))
+            {
+                if (this.boxesByCell.ContainsKey(cell))
+                {
+                    this.boxesByCell[cell].Remove(box);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Returns each box which shares a cell with the area, so the result may include some boxes which do not actually touch it.
+        /// </summary>
+        public List<Rectangle> GetBoxesNear(Rectangle area)
+        {
+            Dictionary<Rectangle, bool> found = new Dictionary<Rectangle, bool>();
+            List<Rectangle> near = new List<Rectangle>();
+
+            foreach (long cell in GetCells(area))
+            {
+                if (this.boxesByCell.ContainsKey(cell))
+                {
+                    foreach (Rectangle box in this.boxesByCell[cell])
+                    {
+                        if (!found.ContainsKey(box))
+                        {
+                            found.Add(box, true);
+                            near.Add(box);
+                        }
+                    }
+                }
+            }
+
+            return near;
+        }
+
+        private static List<long> GetCells(Rectangle area)
+        {
+            List<long> cells = new List<long>();
+            int left = FloorDivide(area.Left);
+            int top = FloorDivide(area.Top);
+            int right = FloorDivide(area.Right);
+            int bottom = FloorDivide(area.Bottom);
+
+            for (int x = left; x <= right; x++)
+            {
+                for (int y = top; y <= bottom; y++)
+                {
+                    cells.Add(((long)x << 32) | (uint)y);
+                }
+            }
+
+            return cells;
+        }
+
+        private static int FloorDivide(int value)
+        {
+            if (value < 0)
+            {
+                return ((value + 1) / INT_CELL_SIZE) - 1;
+            }
+            return value / INT_CELL_SIZE;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Keeps byte arrays handed back after use so the next conversion can have them rather than allocating its own.
+    /// Arrays come in powers of two from 64KB up, and only a few of each size are kept.
+    /// </summary>
+    public class BufferPool
+    {
+        private const int INT_MIN_SIZE_SHIFT = 16;
+        private const int INT_BUCKETS = 15;
+        private const int INT_MAX_KEPT_PER_BUCKET = 4;
+
+        private static Stack<byte[]>[] buckets = CreateBuckets();
+        private static object bucketsLock = new object();
+
+        private static Stack<byte[]>[] CreateBuckets()
+        {
+            Stack<byte[]>[] created = new Stack<byte[]>[INT_BUCKETS];
+
+            for (int i = 0; i < created.Length; i++)
+            {
+                created[i] = new Stack<byte[]>();
+            }
+
+            return created;
+        }
+
+        /// <summary>
+        /// Returns an array at least as long as asked for, which may hold whatever its last user left in it.
+        /// </summary>
+        public static byte[] Rent(int minimumLength)
+        {
+            int bucket = GetBucket(minimumLength);
+
+            if (bucket < 0)
+            {   // Too big to be worth keeping.
+                return new byte[minimumLength];
+            }
+
+            lock ((bucketsLock))
+            {
+                if (buckets[bucket].Count > 0)
+                {
+                    return buckets[bucket].Pop();
+                }
+            }
+
+            return new byte[1 << (bucket + INT_MIN_SIZE_SHIFT)];
+        }
+
+        public static void Return(byte[] buffer)
+        {
+            int bucket = GetBucket(buffer.Length);
+
+            if (bucket < 0 || buffer.Length != 1 << (bucket + INT_MIN_SIZE_SHIFT))
+            {   // Not one of ours.
+                return;
+            }
+
+            lock ((bucketsLock))
+            {
+                if (buckets[bucket].Count < INT_MAX_KEPT_PER_BUCKET)
+                {
+                    buckets[bucket].Push(buffer);
+                }
+            }
+        }
+
+        private static int GetBucket(int length)
+        {
+            for (int bucket = 0; bucket < INT_BUCKETS; bucket++)
+            {
+                if (length <= 1 << (bucket + INT_MIN_SIZE_SHIFT))
+                {
+                    return bucket;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
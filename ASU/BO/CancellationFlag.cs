@@ -0,0 +1,24 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Handed to every thread of an unpack so that starting a new unpack (or dropping a new sheet) can stop the old one.
+    /// </summary>
+    public class CancellationFlag
+    {
+        private volatile bool isCancelled = false;
+
+        public bool IsCancelled
+        {
+            get { return this.isCancelled; }
+        }
+
+        public void Cancel()
+        {
+            this.isCancelled = true;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Counts how often each colour appears, a row at a time, to find the most common one.
+    /// </summary>
+    public class ColourCounter
+    {
+        private int height;
+        private Dictionary<int, ColourTally> talliesByArgb = new Dictionary<int, ColourTally>();
+
+        /// <summary>
+        /// The height is needed to break ties the same way the original column by column count did.
+        /// </summary>
+        public ColourCounter(int height)
+        {
+            this.height = height;
+        }
+
+        public int Count
+        {
+            get { return this.talliesByArgb.Count; }
+        }
+
+        /// <summary>
+        /// Counts row y, from the count ARGB pixels starting at the offset.
+        /// </summary>
+        public void AddRow(int y, int[] pixels, int offset, int count)
+        {
+            ColourTally tally;
+            int end = offset + count;
+            int runStart;
+            int argb;
+            long position;
+
+            for (int x = offset; x < end; )
+            {
+                // Most pixels are in long runs of the same colour, so each run is counted with one lookup.
+                argb = pixels[x];
+                runStart = x;
+                do
+                {
+                    x++;
+                } while (x < end && pixels[x] == argb);
+
+                if (!this.talliesByArgb.TryGetValue(argb, out tally))
+                {
+                    tally = new ColourTally(argb);
+                    this.talliesByArgb.Add(argb, tally);
+                }
+                tally.Count += x - runStart;
+                position = ((long)(runStart - offset) * this.height) + y;
+                if (position < tally.FirstPosition)
+                {
+                    tally.FirstPosition = position;
+                }
+            }
+        }
+
+        public Color GetMostCommon()
+        {
+            ColourTally mostCommon = null;
+
+            foreach (ColourTally candidate in this.talliesByArgb.Values)
+            {
+                // Ties go to the colour first seen furthest along when reading down each column in turn, as they always have.
+                if (mostCommon == null || candidate.Count > mostCommon.Count || (candidate.Count == mostCommon.Count && candidate.FirstPosition > mostCommon.FirstPosition))
+                {
+                    mostCommon = candidate;
+                }
+            }
+
+            return Color.FromArgb(mostCommon.Argb);
+        }
+
+        private class ColourTally
+        {
+            public int Argb;
+            public int Count = 0;
+            // Where the colour is first met reading down each column in turn, i.e. (x * height) + y.
+            public long FirstPosition = long.MaxValue;
+
+            public ColourTally(int argb)
+            {
+                this.Argb = argb;
+            }
+        }
+    }
+}
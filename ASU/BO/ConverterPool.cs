@@ -0,0 +1,255 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Diagnostics;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Runs the third party converter over a queue of command lines, with no more than a set number of processes going
+    /// at once. Whether the conversions worked is for the caller to judge from the files left behind, or for piped
+    /// jobs from what came back on standard output.
+    /// </summary>
+    public class ConverterPool
+    {
+        // Windows allows 32767 characters on a command line, leave room for the executable path and the rest of the args.
+        private const int INT_MAX_ARGS_LENGTH = 30000;
+        private const string STR_FILE_NAME_PLACEHOLDER = "{file_name}";
+
+        public delegate bool AbortCheck();
+        public delegate void OutputHandler(byte[] output, int length);
+
+        private string executablePath;
+        private int maxProcesses;
+        private Queue<ConverterJob> pending = new Queue<ConverterJob>();
+
+        public ConverterPool(string executablePath, int maxProcesses)
+        {
+            this.executablePath = executablePath;
+            this.maxProcesses = maxProcesses > 0 ? maxProcesses : Environment.ProcessorCount;
+        }
+
+        public void Queue(string args)
+        {
+            this.pending.Enqueue(new ConverterJob(args, null, 0, null));
+        }
+
+        /// <summary>
+        /// Queues a run of a converter which reads the image from standard input and writes the result to standard
+        /// output, so nothing touches the disk. The handler is called on the thread calling Run, with whatever was
+        /// written, which is empty if the conversion failed.
+        /// </summary>
+        public void QueuePiped(string args, byte[] input, int inputLength, OutputHandler onOutput)
+        {
+            this.pending.Enqueue(new ConverterJob(args, input, inputLength, onOutput));
+        }
+
+        /// <summary>
+        /// Splits the files into batches of no more than filesPerProcess, each queued as one run of the converter with
+        /// the {file_name} placeholder standing for the whole batch.
+        /// </summary>
+        public void QueueBatches(string argsTemplate, List<string> files, int filesPerProcess)
+        {
+            StringBuilder fileNames = new StringBuilder();
+            int batchCount = 0;
+
+            foreach (string file in files)
+            {
+                string quoted = String.Format("\"{0}\"", file);
+
+                if (
+                    batchCount > 0
+                    && (
+                        batchCount >= filesPerProcess
+                        || argsTemplate.Length + fileNames.Length + quoted.Length + 1 > INT_MAX_ARGS_LENGTH
+                        )
+                    )
+                {
+                    this.Queue(argsTemplate.Replace(STR_FILE_NAME_PLACEHOLDER, fileNames.ToString()));
+                    fileNames.Length = 0;
+                    batchCount = 0;
+                }
+
+                if (batchCount > 0)
+                {
+                    fileNames.Append(' ');
+                }
+                fileNames.Append(quoted);
+                batchCount += 1;
+            }
+
+            if (batchCount > 0)
+            {
+                this.Queue(argsTemplate.Replace(STR_FILE_NAME_PLACEHOLDER, fileNames.ToString()));
+            }
+        }
+
+        /// <summary>
+        /// Blocks until everything queued has run. The abort check is asked each time a process finishes, and if it
+        /// says to stop nothing more is started. Returns false if it was aborted.
+        /// </summary>
+        public bool Run(AbortCheck isAborted)
+        {
+            List<ConverterJob> running = new List<ConverterJob>();
+            bool isStopping = false;
+
+            try
+            {
+                while (running.Count > 0 || (this.pending.Count > 0 && !isStopping))
+                {
+                    while (running.Count < this.maxProcesses && this.pending.Count > 0 && !isStopping)
+                    {
+                        ConverterJob job = this.pending.Dequeue();
+
+                        if (job.Start(this.executablePath))
+                        {
+                            running.Add(job);
+                        }
+                    }
+
+                    for (int i = running.Count - 1; i >= 0; i--)
+                    {
+                        if (running[i].WaitForExit(50))
+                        {
+                            running[i].Complete();
+                            running.RemoveAt(i);
+
+                            if (!isStopping && isAborted != null && isAborted())
+                            {
+                                isStopping = true;
+                            }
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                foreach (ConverterJob job in running)
+                {
+                    job.Dispose();
+                }
+            }
+
+            return !isStopping;
+        }
+
+        private class ConverterJob : IDisposable
+        {
+            private string args;
+            private byte[] input;
+            private int inputLength;
+            private OutputHandler onOutput;
+            private Process process = null;
+            private System.Threading.Thread pumpThread = null;
+            private System.IO.MemoryStream output = null;
+
+            public ConverterJob(string args, byte[] input, int inputLength, OutputHandler onOutput)
+            {
+                this.args = args;
+                this.input = input;
+                this.inputLength = inputLength;
+                this.onOutput = onOutput;
+            }
+
+            public bool Start(string executablePath)
+            {
+                ProcessStartInfo startInfo = new ProcessStartInfo(executablePath, this.args);
+
+                startInfo.CreateNoWindow = true;
+                if (this.input == null)
+                {
+                    startInfo.UseShellExecute = true;
+                }
+                else
+                {   // Pipes need the process started directly rather than through the shell.
+                    startInfo.UseShellExecute = false;
+                    startInfo.RedirectStandardInput = true;
+                    startInfo.RedirectStandardOutput = true;
+                }
+
+                this.process = Process.Start(startInfo);
+                if (this.process == null)
+                {
+                    return false;
+                }
+
+                if (this.input != null)
+                {
+                    this.output = new System.IO.MemoryStream();
+                    this.pumpThread = new System.Threading.Thread(this.Pump);
+                    this.pumpThread.Name = "Converter pipe thread";
+                    this.pumpThread.IsBackground = true;
+                    this.pumpThread.Start();
+                }
+
+                return true;
+            }
+
+            /// <summary>
+            /// Feeds standard input from a thread of its own while reading standard output, as a converter may not read
+            /// all of its input before it starts writing, and either pipe filling up would stall it.
+            /// </summary>
+            private void Pump()
+            {
+                byte[] buffer = BufferPool.Rent(1);
+                System.Threading.Thread writer = new System.Threading.Thread(this.WriteInput);
+                int read;
+
+                try
+                {
+                    writer.IsBackground = true;
+                    writer.Start();
+                    while ((read = this.process.StandardOutput.BaseStream.Read(buffer, 0, buffer.Length)) > 0)
+                    {
+                        this.output.Write(buffer, 0, read);
+                    }
+                    writer.Join();
+                }
+                catch (System.IO.IOException)
+                {   // The converter has gone, Complete hands over whatever was read.
+                }
+                finally
+                {
+                    BufferPool.Return(buffer);
+                }
+            }
+
+            private void WriteInput()
+            {
+                try
+                {
+                    using (System.IO.Stream stdin = this.process.StandardInput.BaseStream)
+                    {
+                        stdin.Write(this.input, 0, this.inputLength);
+                    }
+                }
+                catch (System.IO.IOException)
+                {   // The converter stopped reading, most likely because it failed.
+                }
+            }
+
+            public bool WaitForExit(int milliseconds)
+            {
+                return this.process.WaitForExit(milliseconds);
+            }
+
+            public void Complete()
+            {
+                if (this.pumpThread != null)
+                {
+                    this.pumpThread.Join();
+                }
+                if (this.onOutput != null)
+                {
+                    this.onOutput(this.output.GetBuffer(), this.process.ExitCode == 0 ? (int)this.output.Length : 0);
+                }
+                this.Dispose();
+            }
+
+            public void Dispose()
+            {
+                this.process.Dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Record kept in an export folder of each frame file written there, with the rectangle and pixel hash it was
+    /// written from, so exporting the same sheet again only writes the frames which have changed. Files an earlier
+    /// export wrote which this one does not are removed.
+    /// </summary>
+    public class ExportIndex
+    {
+        private const string STR_FILE_NAME = ".asu_export_index";
+        private const string STR_FILE_HEADER = "asu_export_index 1";
+
+        private class Entry
+        {
+            public Rectangle Box;
+            public ulong PixelHash;
+            public long Length;
+            public long LastWriteTicks;
+        }
+
+        private string folder;
+        private string settings;
+        private bool isSettingsChanged = true;
+        private Dictionary<string, Entry> previous = new Dictionary<string, Entry>();
+        private Dictionary<string, Entry> current = new Dictionary<string, Entry>();
+
+        private ExportIndex(string folder, string settings)
+        {
+            this.folder = folder;
+            this.settings = settings;
+        }
+
+        /// <summary>
+        /// Everything other than the pixels that changes what is written, e.g. the file format and pallette. The whole
+        /// folder is written again when these change.
+        /// </summary>
+        public static string CreateSettings(string extension, Color[] pallette)
+        {
+            ForkandBeard.Util.Text.XXHash64 hash = new ForkandBeard.Util.Text.XXHash64();
+
+            if (pallette == null)
+            {
+                return extension;
+            }
+
+            foreach (Color entry in pallette)
+            {
+                hash.Update(BitConverter.GetBytes(entry.ToArgb()), 0, 4);
+            }
+
+            return String.Format("{0}_p{1:x16}", extension, hash.Digest());
+        }
+
+        /// <summary>
+        /// Reads the folder's index. A missing or unreadable one is treated as empty, so every frame gets written.
+        /// </summary>
+        public static ExportIndex Load(string folder, string settings)
+        {
+            ExportIndex index = new ExportIndex(folder, settings);
+            string path = System.IO.Path.Combine(folder, STR_FILE_NAME);
+
+            if (!System.IO.File.Exists(path))
+            {
+                return index;
+            }
+
+            try
+            {
+                string[] lines = System.IO.File.ReadAllLines(path);
+
+                if (lines.Length < 2 || lines[0] != STR_FILE_HEADER)
+                {
+                    return index;
+                }
+
+                for (int i = 2; i < lines.Length; i++)
+                {
+                    string[] values = lines[i].Split(',');
+                    Entry entry = new Entry();
+
+                    entry.Box = new Rectangle(Convert.ToInt32(values[1]), Convert.ToInt32(values[2]), Convert.ToInt32(values[3]), Convert.ToInt32(values[4]));
+                    entry.PixelHash = Convert.ToUInt64(values[5], 16);
+                    entry.Length = Convert.ToInt64(values[6]);
+                    entry.LastWriteTicks = Convert.ToInt64(values[7]);
+                    index.previous[values[0]] = entry;
+                }
+                index.isSettingsChanged = lines[1] != settings;
+            }
+            catch (Exception ignore)
+            {
+                Console.WriteLine(ignore.ToString());
+                index.previous.Clear();
+            }
+
+            return index;
+        }
+
+        /// <summary>
+        /// Deletes the folder's index, for when it is written to some other way and the index would no longer be true.
+        /// </summary>
+        public static void Delete(string folder)
+        {
+            string path = System.IO.Path.Combine(folder, STR_FILE_NAME);
+
+            if (System.IO.File.Exists(path))
+            {
+                System.IO.File.Delete(path);
+            }
+        }
+
+        /// <summary>
+        /// True if the file was last written from the same rectangle and pixels, and has not been touched since. In
+        /// which case it is kept as it is, and recorded as written by this export too.
+        /// </summary>
+        public bool IsUnchanged(string fileName, Rectangle box, ulong pixelHash)
+        {
+            Entry entry;
+            System.IO.FileInfo file;
+
+            if (this.isSettingsChanged || !this.previous.TryGetValue(fileName, out entry))
+            {
+                return false;
+            }
+            if (entry.Box != box || entry.PixelHash != pixelHash)
+            {
+                return false;
+            }
+
+            file = new System.IO.FileInfo(System.IO.Path.Combine(this.folder, fileName));
+            if (!file.Exists || file.Length != entry.Length || file.LastWriteTimeUtc.Ticks != entry.LastWriteTicks)
+            {
+                return false;
+            }
+
+            this.current[fileName] = entry;
+            return true;
+        }
+
+        /// <summary>
+        /// Records a file this export has just written.
+        /// </summary>
+        public void Add(string fileName, Rectangle box, ulong pixelHash)
+        {
+            Entry entry = new Entry();
+            System.IO.FileInfo file = new System.IO.FileInfo(System.IO.Path.Combine(this.folder, fileName));
+
+            entry.Box = box;
+            entry.PixelHash = pixelHash;
+            entry.Length = file.Length;
+            entry.LastWriteTicks = file.LastWriteTimeUtc.Ticks;
+            this.current[fileName] = entry;
+        }
+
+        /// <summary>
+        /// Deletes the files the last export wrote which this one has not, then saves the index. Only files the index
+        /// knows about are deleted, anything else in the folder is left alone.
+        /// </summary>
+        public void Save()
+        {
+            StringBuilder contents = new StringBuilder();
+            string path = System.IO.Path.Combine(this.folder, STR_FILE_NAME);
+
+            foreach (string fileName in this.previous.Keys)
+            {
+                if (!this.current.ContainsKey(fileName))
+                {
+                    try
+                    {
+                        System.IO.File.Delete(System.IO.Path.Combine(this.folder, fileName));
+                    }
+                    catch (Exception ignore)
+                    {
+                        Console.WriteLine(ignore.ToString());
+                    }
+                }
+            }
+
+            contents.AppendLine(STR_FILE_HEADER);
+            contents.AppendLine(this.settings);
+            foreach (KeyValuePair<string, Entry> pair in this.current)
+            {
+                contents.AppendLine(String.Format("{0},{1},{2},{3},{4},{5:x16},{6},{7}", pair.Key, pair.Value.Box.X, pair.Value.Box.Y, pair.Value.Box.Width, pair.Value.Box.Height, pair.Value.PixelHash, pair.Value.Length, pair.Value.LastWriteTicks));
+            }
+
+            System.IO.File.WriteAllText(path, contents.ToString());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Runtime.InteropServices;
+
+namespace ASU.BO
+{
+    internal static class FileLinks
+    {
+        [DllImport("kernel32.dll", SetLastError = true, CharSet = CharSet.Unicode)]
+        private static extern bool CreateHardLink(string fileName, string existingFileName, IntPtr securityAttributes);
+
+        /// <summary>
+        /// Makes path another name for the existing file, replacing anything already there. Returns false where the
+        /// file system does not do hard links, e.g. FAT drives and some network shares, so the caller can write a copy.
+        /// </summary>
+        public static bool TryCreateHardLink(string path, string existingPath)
+        {
+            if (System.IO.File.Exists(path))
+            {
+                System.IO.File.Delete(path);
+            }
+
+            return CreateHardLink(path, existingPath, IntPtr.Zero);
+        }
+    }
+}
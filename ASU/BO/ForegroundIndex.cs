@@ -0,0 +1,235 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Summed-area table over a ForegroundMask, so that "does this area contain anything?" costs four lookups however big the area is.
+    /// The table takes four bytes a pixel, so for very large sheets it can be left out, and areas are then answered from
+    /// the row runs instead at a cost of one search per row.
+    /// </summary>
+    public class ForegroundIndex
+    {
+        private ForegroundMask mask;
+        private ForegroundRuns runs;
+        private int width;
+        private int height;
+        private int[] sums;
+
+        public ForegroundIndex(ForegroundMask mask)
+            : this(mask, true)
+        {
+        }
+
+        public ForegroundIndex(ForegroundMask mask, bool buildSums)
+        {
+            int rowSum;
+            int stride;
+            uint word;
+
+            this.mask = mask;
+            this.runs = new ForegroundRuns(mask);
+            this.width = mask.Width;
+            this.height = mask.Height;
+            if (!buildSums)
+            {
+                return;
+            }
+            stride = this.width + 1;
+            // An extra leading row and column of zeros saves bounds checks in CountForeground.
+            this.sums = new int[stride * (this.height + 1)];
+
+            for (int y = 0; y < this.height; y++)
+            {
+                rowSum = 0;
+                word = 0;
+                for (int x = 0; x < this.width; x++)
+                {
+                    if ((x & 31) == 0)
+                    {
+                        word = mask.GetWord(y, x >> 5);
+                    }
+                    rowSum += (int)((word >> (x & 31)) & 1);
+                    this.sums[((y + 1) * stride) + x + 1] = this.sums[(y * stride) + x + 1] + rowSum;
+                }
+            }
+        }
+
+        public ForegroundMask Mask
+        {
+            get { return this.mask; }
+        }
+
+        public ForegroundRuns Runs
+        {
+            get { return this.runs; }
+        }
+
+        public int Width
+        {
+            get { return this.width; }
+        }
+
+        public int Height
+        {
+            get { return this.height; }
+        }
+
+        public bool HasSums
+        {
+            get { return this.sums != null; }
+        }
+
+        public bool IsForeground(int x, int y)
+        {
+            return this.mask.IsForeground(x, y);
+        }
+
+        public bool ContainsForeground(int left, int top, int right, int bottom)
+        {
+            if (this.sums == null)
+            {
+                top = Math.Max(top, 0);
+                bottom = Math.Min(bottom, this.height - 1);
+                for (int y = top; y <= bottom; y++)
+                {
+                    if (this.runs.ContainsForeground(y, Math.Max(left, 0), right))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            return this.CountForeground(left, top, right, bottom) > 0;
+        }
+
+        /// <summary>
+        /// The smallest box (exclusive Right and Bottom) holding all of the foreground between the given coordinates (inclusive),
+        /// or Rectangle.Empty if there is none. Each edge is found with a binary search over the table.
+        /// </summary>
+        public Rectangle GetForegroundBounds(int left, int top, int right, int bottom)
+        {
+            int low;
+            int high;
+
+            left = Math.Max(left, 0);
+            top = Math.Max(top, 0);
+            right = Math.Min(right, this.width - 1);
+            bottom = Math.Min(bottom, this.height - 1);
+
+            if (!this.ContainsForeground(left, top, right, bottom))
+            {
+                return Rectangle.Empty;
+            }
+
+            // Leftmost column c where left..c has something in it.
+            low = left;
+            high = right;
+            while (low < high)
+            {
+                int middle = (low + high) / 2;
+
+                if (this.ContainsForeground(left, top, middle, bottom))
+                {
+                    high = middle;
+                }
+                else
+                {
+                    low = middle + 1;
+                }
+            }
+            left = low;
+
+            // Rightmost column c where c..right has something in it.
+            low = left;
+            high = right;
+            while (low < high)
+            {
+                int middle = (low + high + 1) / 2;
+
+                if (this.ContainsForeground(middle, top, right, bottom))
+                {
+                    low = middle;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            right = low;
+
+            low = top;
+            high = bottom;
+            while (low < high)
+            {
+                int middle = (low + high) / 2;
+
+                if (this.ContainsForeground(left, top, right, middle))
+                {
+                    high = middle;
+                }
+                else
+                {
+                    low = middle + 1;
+                }
+            }
+            top = low;
+
+            low = top;
+            high = bottom;
+            while (low < high)
+            {
+                int middle = (low + high + 1) / 2;
+
+                if (this.ContainsForeground(left, middle, right, bottom))
+                {
+                    low = middle;
+                }
+                else
+                {
+                    high = middle - 1;
+                }
+            }
+            bottom = low;
+
+            return new Rectangle(left, top, (right - left) + 1, (bottom - top) + 1);
+        }
+
+        /// <summary>
+        /// Counts the foreground pixels between the given coordinates (inclusive). Anything outside of the image counts as background.
+        /// </summary>
+        public int CountForeground(int left, int top, int right, int bottom)
+        {
+            int stride = this.width + 1;
+
+            left = Math.Max(left, 0);
+            top = Math.Max(top, 0);
+            right = Math.Min(right, this.width - 1);
+            bottom = Math.Min(bottom, this.height - 1);
+
+            if (left > right || top > bottom)
+            {
+                return 0;
+            }
+
+            if (this.sums == null)
+            {
+                int count = 0;
+
+                for (int y = top; y <= bottom; y++)
+                {
+                    count += this.runs.CountForeground(y, left, right);
+                }
+                return count;
+            }
+
+            return this.sums[((bottom + 1) * stride) + right + 1]
+                - this.sums[(top * stride) + right + 1]
+                - this.sums[((bottom + 1) * stride) + left]
+                + this.sums[(top * stride) + left];
+        }
+    }
+}
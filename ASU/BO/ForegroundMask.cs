@@ -0,0 +1,256 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.Drawing.Imaging;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// One bit per pixel, set where the pixel is not the background colour. Detection only ever needs to know this much,
+    /// so the ARGB pixels are read once to build the mask and everything after reads the mask instead.
+    /// </summary>
+    public class ForegroundMask
+    {
+        private int width;
+        private int height;
+        private int wordsPerRow;
+        private uint[] words;
+        private int background;
+        private int tolerance = 0;
+        // -1 unless foreground is read from the alpha channel instead of the colour.
+        private int alphaThreshold = -1;
+        // Whether each colour met so far is foreground (1) or not (0), so the tolerance is only worked out once per distinct colour.
+        private Dictionary<int, uint> classByArgb = null;
+
+        public ForegroundMask(Bitmap image, Color background)
+            : this(image, background, 0)
+        {
+        }
+
+        /// <summary>
+        /// Also takes colours within the tolerance of the background, on every channel, to be background. This stops
+        /// JPEG noise and dithering turning into thousands of specks.
+        /// </summary>
+        public ForegroundMask(Bitmap image, Color background, int tolerance)
+            : this(image.Width, image.Height, background, tolerance)
+        {
+            this.AddImage(image);
+        }
+
+        /// <summary>
+        /// Takes anything more opaque than the threshold to be foreground, whatever its colour.
+        /// </summary>
+        public ForegroundMask(Bitmap image, int alphaThreshold)
+            : this(image.Width, image.Height, alphaThreshold)
+        {
+            this.AddImage(image);
+        }
+
+        /// <summary>
+        /// An empty mask to be filled in a row at a time with AddRow.
+        /// </summary>
+        public ForegroundMask(int width, int height, Color background, int tolerance)
+        {
+            this.Initialise(width, height);
+            this.background = background.ToArgb();
+            this.tolerance = tolerance;
+            if (tolerance > 0)
+            {
+                this.classByArgb = new Dictionary<int, uint>();
+            }
+        }
+
+        public ForegroundMask(int width, int height, int alphaThreshold)
+        {
+            this.Initialise(width, height);
+            this.alphaThreshold = alphaThreshold;
+        }
+
+        private void Initialise(int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+            this.wordsPerRow = (this.width + 31) / 32;
+            this.words = new uint[this.wordsPerRow * this.height];
+        }
+
+        /// <summary>
+        /// Sets row y of the mask from the ARGB pixels starting at the offset.
+        /// </summary>
+        public void AddRow(int y, int[] pixels, int offset)
+        {
+            if (this.alphaThreshold != -1)
+            {
+                PackRowByAlpha(pixels, offset, this.width, this.alphaThreshold, this.words, y * this.wordsPerRow);
+            }
+            else if (this.tolerance > 0)
+            {
+                PackRowWithTolerance(pixels, offset, this.width, this.background, this.tolerance, this.classByArgb, this.words, y * this.wordsPerRow);
+            }
+            else
+            {
+                PackRow(pixels, offset, this.width, this.background, this.words, y * this.wordsPerRow);
+            }
+        }
+
+        private void AddImage(Bitmap image)
+        {
+            BitmapData data;
+            int[] row = new int[this.width];
+
+            data = image.LockBits(new Rectangle(0, 0, this.width, this.height), ImageLockMode.ReadOnly, PixelFormat.Format32bppArgb);
+            try
+            {
+                for (int y = 0; y < this.height; y++)
+                {
+                    System.Runtime.InteropServices.Marshal.Copy(new IntPtr(data.Scan0.ToInt64() + ((long)y * data.Stride)), row, 0, this.width);
+                    this.AddRow(y, row, 0);
+                }
+            }
+            finally
+            {
+                image.UnlockBits(data);
+            }
+        }
+
+        public int Width
+        {
+            get { return this.width; }
+        }
+
+        public int Height
+        {
+            get { return this.height; }
+        }
+
+        public bool IsForeground(int x, int y)
+        {
+            if (x < 0 || y < 0 || x >= this.width || y >= this.height)
+            {
+                return false;
+            }
+
+            return (this.words[(y * this.wordsPerRow) + (x >> 5)] & (1u << (x & 31))) != 0;
+        }
+
+        /// <summary>
+        /// The packed bits for a row, 32 pixels to a word with the leftmost pixel in the lowest bit.
+        /// </summary>
+        public uint GetWord(int y, int wordIndex)
+        {
+            return this.words[(y * this.wordsPerRow) + wordIndex];
+        }
+
+        public int WordsPerRow
+        {
+            get { return this.wordsPerRow; }
+        }
+
+        /// <summary>
+        /// True when most of the pixels around the edge of the image are background. A few stray background pixels in
+        /// the middle of an otherwise solid sheet do not make it a sheet with a background.
+        /// </summary>
+        public bool IsBorderMostlyBackground()
+        {
+            long backgroundCount = 0;
+            long borderCount = 0;
+
+            for (int x = 0; x < this.width; x++)
+            {
+                backgroundCount += (this.IsForeground(x, 0) ? 0 : 1) + (this.IsForeground(x, this.height - 1) ? 0 : 1);
+                borderCount += 2;
+            }
+            for (int y = 1; y < this.height - 1; y++)
+            {
+                backgroundCount += (this.IsForeground(0, y) ? 0 : 1) + (this.IsForeground(this.width - 1, y) ? 0 : 1);
+                borderCount += 2;
+            }
+
+            return backgroundCount * 2 > borderCount;
+        }
+
+        private static void PackRow(int[] pixels, int start, int count, int background, uint[] words, int offset)
+        {
+            int x = start;
+            int difference;
+            uint word;
+
+            for (int wordIndex = 0; x < start + count; wordIndex++)
+            {
+                int end = Math.Min(x + 32, start + count);
+
+                word = 0;
+                for (int bit = 0; x < end; bit++, x++)
+                {
+                    // (d | -d) has its sign bit set for any non-zero d, so this avoids a branch per pixel.
+                    difference = pixels[x] ^ background;
+                    word |= ((uint)(difference | -difference) >> 31) << bit;
+                }
+                words[offset + wordIndex] = word;
+            }
+        }
+
+        private static void PackRowWithTolerance(int[] pixels, int start, int count, int background, int tolerance, Dictionary<int, uint> classByArgb, uint[] words, int offset)
+        {
+            int x = start;
+            int lastArgb = background;
+            uint lastClass = 0;
+            uint word;
+
+            for (int wordIndex = 0; x < start + count; wordIndex++)
+            {
+                int end = Math.Min(x + 32, start + count);
+
+                word = 0;
+                for (int bit = 0; x < end; bit++, x++)
+                {
+                    // Neighbouring pixels are mostly the same colour, so the lookup is only needed when the colour changes.
+                    if (pixels[x] != lastArgb)
+                    {
+                        lastArgb = pixels[x];
+                        if (!classByArgb.TryGetValue(lastArgb, out lastClass))
+                        {
+                            lastClass = IsWithinTolerance(lastArgb, background, tolerance) ? 0u : 1u;
+                            classByArgb.Add(lastArgb, lastClass);
+                        }
+                    }
+                    word |= lastClass << bit;
+                }
+                words[offset + wordIndex] = word;
+            }
+        }
+
+        private static bool IsWithinTolerance(int argb, int background, int tolerance)
+        {
+            for (int shift = 0; shift < 32; shift += 8)
+            {
+                if (Math.Abs(((argb >> shift) & 0xFF) - ((background >> shift) & 0xFF)) > tolerance)
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static void PackRowByAlpha(int[] pixels, int start, int count, int alphaThreshold, uint[] words, int offset)
+        {
+            int x = start;
+            uint word;
+
+            for (int wordIndex = 0; x < start + count; wordIndex++)
+            {
+                int end = Math.Min(x + 32, start + count);
+
+                word = 0;
+                for (int bit = 0; x < end; bit++, x++)
+                {
+                    // Negative, so sign bit set, only when the alpha is above the threshold.
+                    word |= ((uint)(alphaThreshold - (int)((uint)pixels[x] >> 24)) >> 31) << bit;
+                }
+                words[offset + wordIndex] = word;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// The horizontal runs of foreground pixels on each row of a ForegroundMask, so that scanning can jump from one run
+    /// to the next rather than stepping over every background pixel in between.
+    /// </summary>
+    public class ForegroundRuns
+    {
+        private int width;
+        // Runs for row y are at indexes firstRunByRow[y] to firstRunByRow[y + 1] - 1. Ends are exclusive.
+        private int[] firstRunByRow;
+        private int[] runStarts;
+        private int[] runEnds;
+
+        public ForegroundRuns(ForegroundMask mask)
+        {
+            List<int> starts = new List<int>();
+            List<int> ends = new List<int>();
+            int runStart;
+            uint word;
+
+            this.width = mask.Width;
+            this.firstRunByRow = new int[mask.Height + 1];
+
+            for (int y = 0; y < mask.Height; y++)
+            {
+                this.firstRunByRow[y] = starts.Count;
+                runStart = -1;
+
+                for (int wordIndex = 0; wordIndex < mask.WordsPerRow; wordIndex++)
+                {
+                    word = mask.GetWord(y, wordIndex);
+
+                    if (word == 0 && runStart == -1)
+                    {   // Plain background, the usual case.
+                        continue;
+                    }
+                    if (word == uint.MaxValue && runStart != -1)
+                    {
+                        continue;
+                    }
+
+                    for (int bit = 0; bit < 32; bit++)
+                    {
+                        bool isForeground = ((word >> bit) & 1) != 0;
+                        int x = (wordIndex * 32) + bit;
+
+                        if (isForeground && runStart == -1)
+                        {
+                            runStart = x;
+                        }
+                        else if (!isForeground && runStart != -1)
+                        {
+                            starts.Add(runStart);
+                            ends.Add(x);
+                            runStart = -1;
+                        }
+                    }
+                }
+
+                if (runStart != -1)
+                {
+                    starts.Add(runStart);
+                    ends.Add(this.width);
+                }
+            }
+            this.firstRunByRow[mask.Height] = starts.Count;
+
+            this.runStarts = starts.ToArray();
+            this.runEnds = ends.ToArray();
+        }
+
+        /// <summary>
+        /// The first foreground x on the row at or after the given x, or -1 if there are none.
+        /// </summary>
+        public int GetNextForeground(int y, int x)
+        {
+            int run = this.FindRun(y, x);
+
+            if (run == -1)
+            {
+                return -1;
+            }
+
+            return Math.Max(this.runStarts[run], x);
+        }
+
+        /// <summary>
+        /// Where the run containing the given pixel ends (exclusive), or x itself if the pixel is background.
+        /// </summary>
+        public int GetRunEnd(int y, int x)
+        {
+            int run = this.FindRun(y, x);
+
+            if (run == -1 || this.runStarts[run] > x)
+            {
+                return x;
+            }
+
+            return this.runEnds[run];
+        }
+
+        public bool ContainsForeground(int y, int left, int right)
+        {
+            int next = this.GetNextForeground(y, left);
+
+            return next != -1 && next <= right;
+        }
+
+        /// <summary>
+        /// Counts the foreground pixels on the row between left and right (inclusive).
+        /// </summary>
+        public int CountForeground(int y, int left, int right)
+        {
+            int run = this.FindRun(y, left);
+            int count = 0;
+
+            if (run == -1)
+            {
+                return 0;
+            }
+
+            for (; run < this.firstRunByRow[y + 1] && this.runStarts[run] <= right; run++)
+            {
+                count += (Math.Min(this.runEnds[run] - 1, right) - Math.Max(this.runStarts[run], left)) + 1;
+            }
+
+            return count;
+        }
+
+        /// <summary>
+        /// Binary search for the first run on the row which ends after x.
+        /// </summary>
+        private int FindRun(int y, int x)
+        {
+            int low;
+            int high;
+            int found = -1;
+
+            if (y < 0 || y >= this.firstRunByRow.Length - 1)
+            {
+                return -1;
+            }
+
+            low = this.firstRunByRow[y];
+            high = this.firstRunByRow[y + 1] - 1;
+
+            while (low <= high)
+            {
+                int middle = (low + high) / 2;
+
+                if (this.runEnds[middle] > x)
+                {
+                    found = middle;
+                    high = middle - 1;
+                }
+                else
+                {
+                    low = middle + 1;
+                }
+            }
+
+            return found;
+        }
+    }
+}
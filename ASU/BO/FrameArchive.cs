@@ -0,0 +1,244 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.IO;
+using System.IO.Compression;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Writes exported frames one after another into a single ZIP or TAR file, in place of a file per frame. Each frame
+    /// is written out as soon as it is added, so only one frame is held in memory at a time. ZIPs are deflated per file
+    /// and TARs gzipped as a whole, unless store only, which suits frames that are compressed PNGs already.
+    /// </summary>
+    public class FrameArchive : IDisposable
+    {
+        public const string STR_FORMAT_ZIP = "zip";
+        public const string STR_FORMAT_TAR = "tar";
+
+        private const uint UINT_ZIP_LOCAL_HEADER = 0x04034B50;
+        private const uint UINT_ZIP_CENTRAL_HEADER = 0x02014B50;
+        private const uint UINT_ZIP_END = 0x06054B50;
+        private const ushort USHORT_ZIP_VERSION = 20;
+        private const ushort USHORT_ZIP_STORED = 0;
+        private const ushort USHORT_ZIP_DEFLATED = 8;
+        private const int INT_TAR_BLOCK = 512;
+
+        private FileStream file;
+        private Stream stream;
+        private BinaryWriter writer;
+        private bool isZip;
+        private bool isStoreOnly;
+        private ushort dosTime;
+        private ushort dosDate;
+        private long tarTime;
+        private MemoryStream deflated = new MemoryStream();
+        // The central directory, built up as files are added and written at the end.
+        private MemoryStream centralDirectory = new MemoryStream();
+        private int count = 0;
+
+        public FrameArchive(string path, string format, bool isStoreOnly)
+        {
+            DateTime now = DateTime.Now;
+
+            this.isZip = !String.Equals(format, STR_FORMAT_TAR, StringComparison.OrdinalIgnoreCase);
+            this.isStoreOnly = isStoreOnly;
+            this.dosTime = (ushort)((now.Hour << 11) | (now.Minute << 5) | (now.Second / 2));
+            this.dosDate = (ushort)(((now.Year - 1980) << 9) | (now.Month << 5) | now.Day);
+            this.tarTime = (long)(DateTime.UtcNow - new DateTime(1970, 1, 1)).TotalSeconds;
+
+            this.file = new FileStream(path, FileMode.Create, FileAccess.Write, FileShare.None, 64 * 1024);
+            this.stream = this.file;
+            if (!this.isZip && !this.isStoreOnly)
+            {   // Buffered so the compressor is handed large writes, not one header or frame at a time.
+                this.stream = new BufferedStream(new GZipStream(this.file, CompressionMode.Compress, true), 64 * 1024);
+            }
+            this.writer = new BinaryWriter(this.stream);
+        }
+
+        /// <summary>
+        /// The file extension for the given format, .tar.gz for TARs which are not store only.
+        /// </summary>
+        public static string GetExtension(string format, bool isStoreOnly)
+        {
+            if (!String.Equals(format, STR_FORMAT_TAR, StringComparison.OrdinalIgnoreCase))
+            {
+                return STR_FORMAT_ZIP;
+            }
+
+            return isStoreOnly ? STR_FORMAT_TAR : STR_FORMAT_TAR + ".gz";
+        }
+
+        /// <summary>
+        /// Throws an IOException, before anything of the frame is written, if a ZIP has no room for it.
+        /// </summary>
+        public void Add(string name, byte[] data, int length)
+        {
+            if (this.isZip)
+            {
+                // 0xFFFF entries and 0xFFFFFFFF offsets are the markers for ZIP64, which is not written.
+                if (this.count + 1 >= ushort.MaxValue || this.file.Position + 30 + name.Length + length >= uint.MaxValue)
+                {
+                    throw new IOException("Too many or too large frames for a ZIP archive, export to a TAR archive instead.");
+                }
+
+                this.AddZipEntry(Encoding.ASCII.GetBytes(name), data, length);
+            }
+            else
+            {
+                this.AddTarEntry(Encoding.ASCII.GetBytes(name), data, length);
+            }
+            this.count += 1;
+        }
+
+        /// <summary>
+        /// Writes out the end of the archive. Without this the file is left truncated.
+        /// </summary>
+        public void Finish()
+        {
+            if (this.isZip)
+            {
+                long offset = this.file.Position;
+
+                if (offset >= uint.MaxValue)
+                {
+                    throw new IOException("Too many or too large frames for a ZIP archive, export to a TAR archive instead.");
+                }
+                this.writer.Write(this.centralDirectory.GetBuffer(), 0, (int)this.centralDirectory.Length);
+                this.writer.Write(UINT_ZIP_END);
+                this.writer.Write((ushort)0);
+                this.writer.Write((ushort)0);
+                this.writer.Write((ushort)this.count);
+                this.writer.Write((ushort)this.count);
+                this.writer.Write((uint)this.centralDirectory.Length);
+                this.writer.Write((uint)offset);
+                this.writer.Write((ushort)0);
+            }
+            else
+            {   // Two empty blocks mark the end.
+                this.writer.Write(new byte[INT_TAR_BLOCK * 2]);
+            }
+            this.writer.Flush();
+        }
+
+        public void Dispose()
+        {
+            this.writer.Close();
+            if (this.stream != this.file)
+            {
+                this.file.Close();
+            }
+        }
+
+        /// <summary>
+        /// Sizes and CRC are known before anything is written, so every entry is a plain local header then the data,
+        /// with no data descriptor after.
+        /// </summary>
+        private void AddZipEntry(byte[] name, byte[] data, int length)
+        {
+            uint crc = PngWriter.UpdateCrc(0xFFFFFFFF, data, 0, length) ^ 0xFFFFFFFF;
+            ushort method = USHORT_ZIP_STORED;
+            byte[] stored = data;
+            int storedLength = length;
+            long offset = this.file.Position;
+
+            if (!this.isStoreOnly)
+            {
+                this.deflated.SetLength(0);
+                using (DeflateStream deflater = new DeflateStream(this.deflated, CompressionMode.Compress, true))
+                {
+                    deflater.Write(data, 0, length);
+                }
+                if (this.deflated.Length < length)
+                {   // Already compressed data can come out bigger, in which case it is stored as is.
+                    method = USHORT_ZIP_DEFLATED;
+                    stored = this.deflated.GetBuffer();
+                    storedLength = (int)this.deflated.Length;
+                }
+            }
+
+            this.WriteZipHeader(this.writer, UINT_ZIP_LOCAL_HEADER, method, crc, storedLength, length, name, -1);
+            this.writer.Write(stored, 0, storedLength);
+
+            this.WriteZipHeader(new BinaryWriter(this.centralDirectory), UINT_ZIP_CENTRAL_HEADER, method, crc, storedLength, length, name, offset);
+        }
+
+        /// <summary>
+        /// Local headers when there is no offset, central directory headers, which point back at the local one, when there is.
+        /// </summary>
+        private void WriteZipHeader(BinaryWriter header, uint signature, ushort method, uint crc, int storedLength, int length, byte[] name, long offset)
+        {
+            header.Write(signature);
+            if (offset >= 0)
+            {   // Version made by.
+                header.Write(USHORT_ZIP_VERSION);
+            }
+            header.Write(USHORT_ZIP_VERSION);
+            header.Write((ushort)0);
+            header.Write(method);
+            header.Write(this.dosTime);
+            header.Write(this.dosDate);
+            header.Write(crc);
+            header.Write((uint)storedLength);
+            header.Write((uint)length);
+            header.Write((ushort)name.Length);
+            header.Write((ushort)0);
+            if (offset >= 0)
+            {   // Comment length, disk number, internal and external attributes, then the local header's offset.
+                header.Write((ushort)0);
+                header.Write((ushort)0);
+                header.Write((ushort)0);
+                header.Write((uint)0);
+                header.Write((uint)offset);
+            }
+            header.Write(name);
+            header.Flush();
+        }
+
+        /// <summary>
+        /// A ustar header block, then the data padded out to a whole number of blocks.
+        /// </summary>
+        private void AddTarEntry(byte[] name, byte[] data, int length)
+        {
+            byte[] header = new byte[INT_TAR_BLOCK];
+            int checksum = 0;
+            int padding = (INT_TAR_BLOCK - (length % INT_TAR_BLOCK)) % INT_TAR_BLOCK;
+
+            Array.Copy(name, header, Math.Min(name.Length, 100));
+            WriteTarNumber(header, 100, 8, 420); // 0644
+            WriteTarNumber(header, 108, 8, 0);
+            WriteTarNumber(header, 116, 8, 0);
+            WriteTarNumber(header, 124, 12, length);
+            WriteTarNumber(header, 136, 12, this.tarTime);
+            header[156] = (byte)'0';
+            Encoding.ASCII.GetBytes("ustar", 0, 5, header, 257);
+            Encoding.ASCII.GetBytes("00", 0, 2, header, 263);
+
+            // The checksum is worked out with its own field as spaces.
+            for (int i = 148; i < 156; i++)
+            {
+                header[i] = (byte)' ';
+            }
+            foreach (byte value in header)
+            {
+                checksum += value;
+            }
+            WriteTarNumber(header, 148, 7, checksum);
+
+            this.writer.Write(header);
+            this.writer.Write(data, 0, length);
+            this.writer.Write(new byte[padding]);
+        }
+
+        /// <summary>
+        /// Octal, zero padded, with a terminating null.
+        /// </summary>
+        private static void WriteTarNumber(byte[] header, int offset, int fieldLength, long value)
+        {
+            string octal = Convert.ToString(value, 8).PadLeft(fieldLength - 1, '0');
+
+            Encoding.ASCII.GetBytes(octal, 0, fieldLength - 1, header, offset);
+            header[offset + fieldLength - 1] = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Spots exported frames which are pixel for pixel the same as one seen before. Frames are matched by hash and then
+    /// compared in full, so a hash collision can never pass one frame off as another.
+    /// </summary>
+    public class FrameDeduplicator
+    {
+        private Dictionary<ulong, List<int>> firstsByHash = new Dictionary<ulong, List<int>>();
+        private Dictionary<int, PixelBuffer> framesByIndex = new Dictionary<int, PixelBuffer>();
+
+        /// <summary>
+        /// Returns the index of an identical frame added before, or -1 if this is the first of its kind, in which case it
+        /// is kept under the given index for later frames to be matched against.
+        /// </summary>
+        public int FindOrAdd(PixelBuffer frame, int index)
+        {
+            return this.FindOrAdd(frame, frame.HashPixels(), index);
+        }
+
+        /// <summary>
+        /// As above, for when the caller has the frame's hash already.
+        /// </summary>
+        public int FindOrAdd(PixelBuffer frame, ulong hash, int index)
+        {
+            List<int> firsts;
+
+            if (this.firstsByHash.TryGetValue(hash, out firsts))
+            {
+                foreach (int first in firsts)
+                {
+                    if (this.framesByIndex[first].IsSameAs(frame))
+                    {
+                        return first;
+                    }
+                }
+            }
+            else
+            {
+                firsts = new List<int>();
+                this.firstsByHash.Add(hash, firsts);
+            }
+
+            firsts.Add(index);
+            this.framesByIndex.Add(index, frame);
+
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.IO;
+using System.Xml;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// The list of exported frames and where each one came from on the sheet, written out as JSON, XML or a compact
+    /// binary form for an engine to load frames by. Frames are listed in the order they are added. Frames are either
+    /// packed into one image, each in a file of their own, or, with neither, the manifest is coordinates only for
+    /// slicing the original sheet.
+    /// </summary>
+    public class FrameManifest
+    {
+        public const string STR_FORMAT_JSON = "json";
+        public const string STR_FORMAT_XML = "xml";
+        public const string STR_FORMAT_BINARY = "bin";
+
+        // "ASUF", then a version number which goes up whenever the binary layout changes.
+        private static readonly byte[] BinarySignature = new byte[] { (byte)'A', (byte)'S', (byte)'U', (byte)'F' };
+        private const int INT_BINARY_VERSION = 2;
+        private const int INT_BINARY_FLAG_IMAGE = 1;
+        private const int INT_BINARY_FLAG_FILES = 2;
+
+        private string sheetName;
+        private Size sheetSize;
+        private string imageFileName = null;
+        private Size imageSize = Size.Empty;
+        private List<Rectangle> sources = new List<Rectangle>();
+        private List<Point> locations = new List<Point>();
+        private List<string> fileNames = new List<string>();
+        private bool hasFileNames = false;
+
+        public FrameManifest(string sheetName, Size sheetSize)
+        {
+            this.sheetName = sheetName;
+            this.sheetSize = sheetSize;
+        }
+
+        /// <summary>
+        /// The image the frames have been packed into, which frame locations are relative to.
+        /// </summary>
+        public void SetImage(string fileName, Size size)
+        {
+            this.imageFileName = fileName;
+            this.imageSize = size;
+        }
+
+        public void AddFrame(Rectangle source, Point location)
+        {
+            this.sources.Add(source);
+            this.locations.Add(location);
+            this.fileNames.Add(null);
+        }
+
+        /// <summary>
+        /// A frame saved to a file of its own. Several frames can share a file when they are identical.
+        /// </summary>
+        public void AddFrame(Rectangle source, string fileName)
+        {
+            this.sources.Add(source);
+            this.locations.Add(Point.Empty);
+            this.fileNames.Add(fileName);
+            this.hasFileNames = true;
+        }
+
+        /// <summary>
+        /// Frames packed into an image are placed by x and y, coordinates only frames are their x and y on the sheet.
+        /// </summary>
+        private bool HasLocations()
+        {
+            return this.imageFileName != null || !this.hasFileNames;
+        }
+
+        private bool HasSourceLocations()
+        {
+            return this.imageFileName != null || this.hasFileNames;
+        }
+
+        private Point GetLocation(int index)
+        {
+            return this.imageFileName != null ? this.locations[index] : this.sources[index].Location;
+        }
+
+        public void Save(string path, string format)
+        {
+            if (String.Equals(format, STR_FORMAT_XML, StringComparison.OrdinalIgnoreCase))
+            {
+                this.SaveXml(path);
+            }
+            else if (String.Equals(format, STR_FORMAT_BINARY, StringComparison.OrdinalIgnoreCase))
+            {
+                this.SaveBinary(path);
+            }
+            else
+            {
+                this.SaveJson(path);
+            }
+        }
+
+        private void SaveJson(string path)
+        {
+            using (StreamWriter writer = new StreamWriter(path, false, new UTF8Encoding(false)))
+            {
+                writer.WriteLine("{");
+                writer.WriteLine("  \"sheet\": {0},", ToJsonString(this.sheetName));
+                writer.WriteLine("  \"sheetWidth\": {0},", this.sheetSize.Width);
+                writer.WriteLine("  \"sheetHeight\": {0},", this.sheetSize.Height);
+                if (this.imageFileName != null)
+                {
+                    writer.WriteLine("  \"image\": {0},", ToJsonString(this.imageFileName));
+                    writer.WriteLine("  \"imageWidth\": {0},", this.imageSize.Width);
+                    writer.WriteLine("  \"imageHeight\": {0},", this.imageSize.Height);
+                }
+                writer.WriteLine("  \"frames\": [");
+                for (int i = 0; i < this.sources.Count; i++)
+                {
+                    StringBuilder frame = new StringBuilder();
+
+                    frame.AppendFormat("    {{ \"index\": {0}", i);
+                    if (this.hasFileNames)
+                    {
+                        frame.AppendFormat(", \"file\": {0}", ToJsonString(this.fileNames[i]));
+                    }
+                    if (this.HasLocations())
+                    {
+                        frame.AppendFormat(", \"x\": {0}, \"y\": {1}", this.GetLocation(i).X, this.GetLocation(i).Y);
+                    }
+                    frame.AppendFormat(", \"w\": {0}, \"h\": {1}", this.sources[i].Width, this.sources[i].Height);
+                    if (this.HasSourceLocations())
+                    {
+                        frame.AppendFormat(", \"sourceX\": {0}, \"sourceY\": {1}", this.sources[i].X, this.sources[i].Y);
+                    }
+                    frame.Append(i < this.sources.Count - 1 ? " }," : " }");
+                    writer.WriteLine(frame.ToString());
+                }
+                writer.WriteLine("  ]");
+                writer.WriteLine("}");
+            }
+        }
+
+        private void SaveXml(string path)
+        {
+            XmlWriterSettings settings = new XmlWriterSettings();
+
+            settings.Indent = true;
+            settings.Encoding = new UTF8Encoding(false);
+            using (XmlWriter writer = XmlWriter.Create(path, settings))
+            {
+                writer.WriteStartElement("manifest");
+                writer.WriteAttributeString("sheet", this.sheetName);
+                writer.WriteAttributeString("sheetWidth", this.sheetSize.Width.ToString());
+                writer.WriteAttributeString("sheetHeight", this.sheetSize.Height.ToString());
+                if (this.imageFileName != null)
+                {
+                    writer.WriteAttributeString("image", this.imageFileName);
+                    writer.WriteAttributeString("imageWidth", this.imageSize.Width.ToString());
+                    writer.WriteAttributeString("imageHeight", this.imageSize.Height.ToString());
+                }
+
+                for (int i = 0; i < this.sources.Count; i++)
+                {
+                    writer.WriteStartElement("frame");
+                    writer.WriteAttributeString("index", i.ToString());
+                    if (this.hasFileNames)
+                    {
+                        writer.WriteAttributeString("file", this.fileNames[i]);
+                    }
+                    if (this.HasLocations())
+                    {
+                        writer.WriteAttributeString("x", this.GetLocation(i).X.ToString());
+                        writer.WriteAttributeString("y", this.GetLocation(i).Y.ToString());
+                    }
+                    writer.WriteAttributeString("w", this.sources[i].Width.ToString());
+                    writer.WriteAttributeString("h", this.sources[i].Height.ToString());
+                    if (this.HasSourceLocations())
+                    {
+                        writer.WriteAttributeString("sourceX", this.sources[i].X.ToString());
+                        writer.WriteAttributeString("sourceY", this.sources[i].Y.ToString());
+                    }
+                    writer.WriteEndElement();
+                }
+
+                writer.WriteEndElement();
+            }
+        }
+
+        /// <summary>
+        /// Little endian throughout: the signature, version and flags (1 for an image, 2 for files), the sheet name as
+        /// BinaryWriter writes strings (a 7 bit encoded length then UTF-8), the sheet width and height, the image file
+        /// name (empty if there is none) with its width and height, and the frame count. Then for each frame its file
+        /// name with files, x and y unless there are only files, width and height, and its x and y on the sheet with an
+        /// image or files.
+        /// </summary>
+        private void SaveBinary(string path)
+        {
+            using (BinaryWriter writer = new BinaryWriter(new FileStream(path, FileMode.Create, FileAccess.Write, FileShare.None), new UTF8Encoding(false)))
+            {
+                writer.Write(BinarySignature);
+                writer.Write(INT_BINARY_VERSION);
+                writer.Write((this.imageFileName != null ? INT_BINARY_FLAG_IMAGE : 0) | (this.hasFileNames ? INT_BINARY_FLAG_FILES : 0));
+                writer.Write(this.sheetName);
+                writer.Write(this.sheetSize.Width);
+                writer.Write(this.sheetSize.Height);
+                writer.Write(this.imageFileName == null ? String.Empty : this.imageFileName);
+                writer.Write(this.imageSize.Width);
+                writer.Write(this.imageSize.Height);
+                writer.Write(this.sources.Count);
+
+                for (int i = 0; i < this.sources.Count; i++)
+                {
+                    if (this.hasFileNames)
+                    {
+                        writer.Write(this.fileNames[i]);
+                    }
+                    if (this.HasLocations())
+                    {
+                        writer.Write(this.GetLocation(i).X);
+                        writer.Write(this.GetLocation(i).Y);
+                    }
+                    writer.Write(this.sources[i].Width);
+                    writer.Write(this.sources[i].Height);
+                    if (this.HasSourceLocations())
+                    {
+                        writer.Write(this.sources[i].X);
+                        writer.Write(this.sources[i].Y);
+                    }
+                }
+            }
+        }
+
+        private static string ToJsonString(string value)
+        {
+            StringBuilder escaped = new StringBuilder("\"");
+
+            foreach (char c in value)
+            {
+                switch (c)
+                {
+                    case '"':
+                        escaped.Append("\\\"");
+                        break;
+                    case '\\':
+                        escaped.Append("\\\\");
+                        break;
+                    default:
+                        if (c < ' ')
+                        {
+                            escaped.AppendFormat("\\u{0:x4}", (int)c);
+                        }
+                        else
+                        {
+                            escaped.Append(c);
+                        }
+                        break;
+                }
+            }
+
+            return escaped.Append('"').ToString();
+        }
+    }
+}
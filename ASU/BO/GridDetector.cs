@@ -0,0 +1,216 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Spots sheets laid out as a uniform grid of equal sized cells, which can be unpacked straight from the
+    /// column and row profiles without any of the scanning and merging RegionUnpacker does.
+    /// </summary>
+    public class GridDetector
+    {
+        private const int INT_MIN_CELL_SIZE = 8;
+
+        /// <summary>
+        /// Returns the box around the contents of each non-empty cell, or null if the sheet is not a uniform grid.
+        /// </summary>
+        public static List<Rectangle> GetCellBoxes(ForegroundIndex foreground)
+        {
+            bool[] isColumnUsed = new bool[foreground.Width];
+            bool[] isRowUsed = new bool[foreground.Height];
+            int columns;
+            int rows;
+            int cellWidth;
+            int cellHeight;
+            List<Rectangle> boxes = new List<Rectangle>();
+
+            for (int x = 0; x < foreground.Width; x++)
+            {
+                isColumnUsed[x] = foreground.ContainsForeground(x, 0, x, foreground.Height - 1);
+            }
+            for (int y = 0; y < foreground.Height; y++)
+            {
+                isRowUsed[y] = foreground.ContainsForeground(0, y, foreground.Width - 1, y);
+            }
+
+            columns = GetCellCount(isColumnUsed);
+            rows = GetCellCount(isRowUsed);
+
+            if (columns * rows < 2)
+            {
+                return null;
+            }
+
+            cellWidth = foreground.Width / columns;
+            cellHeight = foreground.Height / rows;
+
+            for (int row = 0; row < rows; row++)
+            {
+                for (int column = 0; column < columns; column++)
+                {
+                    Rectangle cell = new Rectangle(column * cellWidth, row * cellHeight, cellWidth, cellHeight);
+                    Rectangle box = foreground.GetForegroundBounds(cell.Left, cell.Top, cell.Right - 1, cell.Bottom - 1);
+
+                    if (!box.IsEmpty)
+                    {
+                        if (CountPieces(foreground.Runs, box) > 1)
+                        {   // More than one thing in the cell, so leave it to the normal unpack to decide what to do with them.
+                            return null;
+                        }
+                        boxes.Add(box);
+                    }
+                }
+            }
+
+            return boxes;
+        }
+
+        /// <summary>
+        /// Finds the most cells the profile divides evenly into, where every cell boundary falls inside an empty gutter
+        /// and every cell has something in it. Returns 1 when there is no such division.
+        /// </summary>
+        private static int GetCellCount(bool[] isUsed)
+        {
+            for (int count = isUsed.Length / INT_MIN_CELL_SIZE; count >= 2; count--)
+            {
+                if (isUsed.Length % count == 0 && IsValidDivision(isUsed, isUsed.Length / count))
+                {
+                    return count;
+                }
+            }
+
+            return 1;
+        }
+
+        /// <summary>
+        /// Both sides of every boundary must be empty, and no cell may hold a gap between its used pixels as wide as the
+        /// narrowest gutter the boundaries fall in. Otherwise the boundary could just as well be a gap inside a sprite.
+        /// </summary>
+        private static bool IsValidDivision(bool[] isUsed, int cellSize)
+        {
+            int narrowestGutter = int.MaxValue;
+            int widestGap = 0;
+
+            for (int start = 0; start < isUsed.Length; start += cellSize)
+            {
+                bool isCellUsed = false;
+                int lastUsed = -1;
+
+                if (start > 0)
+                {
+                    if (isUsed[start - 1] || isUsed[start])
+                    {   // Something touches or straddles the boundary.
+                        return false;
+                    }
+                    narrowestGutter = Math.Min(narrowestGutter, GetGutterWidth(isUsed, start));
+                }
+
+                for (int i = start; i < start + cellSize; i++)
+                {
+                    if (isUsed[i])
+                    {
+                        if (lastUsed != -1)
+                        {
+                            widestGap = Math.Max(widestGap, i - lastUsed - 1);
+                        }
+                        lastUsed = i;
+                        isCellUsed = true;
+                    }
+                }
+
+                if (!isCellUsed)
+                {
+                    return false;
+                }
+            }
+
+            return widestGap < narrowestGutter;
+        }
+
+        /// <summary>
+        /// The length of the empty run the boundary before index falls in.
+        /// </summary>
+        private static int GetGutterWidth(bool[] isUsed, int index)
+        {
+            int left = index - 1;
+            int right = index;
+
+            while (left >= 0 && !isUsed[left])
+            {
+                left--;
+            }
+            while (right < isUsed.Length && !isUsed[right])
+            {
+                right++;
+            }
+
+            return right - left - 1;
+        }
+
+        /// <summary>
+        /// Counts the separately connected pieces of foreground in the box, pixels touching at a corner counting as
+        /// connected. Runs on each row are joined to the runs they touch on the row above.
+        /// </summary>
+        private static int CountPieces(ForegroundRuns runs, Rectangle box)
+        {
+            List<int> starts = new List<int>();
+            List<int> ends = new List<int>();
+            List<int> parents = new List<int>();
+            int pieces = 0;
+            int previousFirst = 0;
+            int previousLast = 0;
+
+            for (int y = box.Top; y < box.Bottom; y++)
+            {
+                int first = starts.Count;
+                int x = box.Left;
+                int next;
+
+                while ((next = runs.GetNextForeground(y, x)) != -1 && next < box.Right)
+                {
+                    int end = Math.Min(runs.GetRunEnd(y, next), box.Right);
+                    int run = starts.Count;
+
+                    starts.Add(next);
+                    ends.Add(end);
+                    parents.Add(run);
+                    pieces += 1;
+
+                    for (int above = previousFirst; above < previousLast; above++)
+                    {
+                        if (starts[above] <= end && ends[above] >= next)
+                        {   // Overlapping or diagonally adjacent.
+                            int a = FindRoot(parents, above);
+                            int b = FindRoot(parents, run);
+
+                            if (a != b)
+                            {
+                                parents[b] = a;
+                                pieces -= 1;
+                            }
+                        }
+                    }
+                    x = end;
+                }
+
+                previousFirst = first;
+                previousLast = starts.Count;
+            }
+
+            return pieces;
+        }
+
+        private static int FindRoot(List<int> parents, int index)
+        {
+            while (parents[index] != index)
+            {
+                parents[index] = parents[parents[index]];
+                index = parents[index];
+            }
+
+            return index;
+        }
+    }
+}
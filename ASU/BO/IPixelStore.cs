@@ -0,0 +1,20 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Somewhere decoded ARGB pixels are kept, a row at a time.
+    /// </summary>
+    public interface IPixelStore
+    {
+        int Width { get; }
+        int Height { get; }
+        void WriteRow(int y, int[] pixels, int offset);
+        void ReadRow(int y, int[] pixels, int offset);
+        PixelBuffer Crop(Rectangle area);
+        Bitmap ToBitmap();
+    }
+}
@@ -0,0 +1,239 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.IO;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// What can be told about an image file from its first few bytes, without decoding any pixels.
+    /// </summary>
+    public class ImageHeader
+    {
+        public const string STR_FORMAT_PNG = "png";
+        public const string STR_FORMAT_BMP = "bmp";
+        public const string STR_FORMAT_GIF = "gif";
+        public const string STR_FORMAT_JPEG = "jpeg";
+        public const string STR_FORMAT_TGA = "tga";
+        public const string STR_FORMAT_PCX = "pcx";
+
+        private const int INT_PROBE_BYTES = 64 * 1024;
+
+        public string Format { get; private set; }
+        public Size Size { get; private set; }
+        public bool HasAlpha { get; private set; }
+        public bool IsIndexed { get; private set; }
+
+        private ImageHeader(string format, int width, int height, bool hasAlpha, bool isIndexed)
+        {
+            this.Format = format;
+            this.Size = new Size(width, height);
+            this.HasAlpha = hasAlpha;
+            this.IsIndexed = isIndexed;
+        }
+
+        /// <summary>
+        /// Returns null if the file is not a PNG, BMP, GIF, JPEG, PCX or TGA, or its header does not make sense.
+        /// </summary>
+        public static ImageHeader Probe(string path)
+        {
+            byte[] bytes = new byte[INT_PROBE_BYTES];
+            int length = 0;
+            int read;
+            ImageHeader header;
+
+            try
+            {
+                using (FileStream stream = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read))
+                {
+                    while (length < bytes.Length && (read = stream.Read(bytes, length, bytes.Length - length)) > 0)
+                    {
+                        length += read;
+                    }
+                }
+            }
+            catch (IOException)
+            {
+                return null;
+            }
+            catch (UnauthorizedAccessException)
+            {
+                return null;
+            }
+
+            header = ProbePng(bytes, length);
+            if (header == null)
+            {
+                header = ProbeBmp(bytes, length);
+            }
+            if (header == null)
+            {
+                header = ProbeGif(bytes, length);
+            }
+            if (header == null)
+            {
+                header = ProbeJpeg(bytes, length);
+            }
+            if (header == null)
+            {
+                header = ProbePcx(bytes, length);
+            }
+            if (header == null && String.Equals(Path.GetExtension(path), ".tga", StringComparison.OrdinalIgnoreCase))
+            {   // TGAs have no signature, so only go by the header when the name says it is one.
+                header = ProbeTga(bytes, length);
+            }
+
+            if (header != null && (header.Size.Width <= 0 || header.Size.Height <= 0))
+            {
+                return null;
+            }
+
+            return header;
+        }
+
+        private static ImageHeader ProbePng(byte[] bytes, int length)
+        {
+            byte[] signature = new byte[] { 137, 80, 78, 71, 13, 10, 26, 10 };
+            byte colourType;
+
+            if (length < 33)
+            {
+                return null;
+            }
+            for (int i = 0; i < signature.Length; i++)
+            {
+                if (bytes[i] != signature[i])
+                {
+                    return null;
+                }
+            }
+            if (Encoding.ASCII.GetString(bytes, 12, 4) != "IHDR")
+            {
+                return null;
+            }
+
+            colourType = bytes[25];
+            return new ImageHeader(STR_FORMAT_PNG, (int)ReadBigEndian(bytes, 16), (int)ReadBigEndian(bytes, 20), colourType == 4 || colourType == 6 || ContainsPngChunk(bytes, length, "tRNS"), colourType == 3);
+        }
+
+        /// <summary>
+        /// Looks through the chunks before the image data, as far as was read.
+        /// </summary>
+        private static bool ContainsPngChunk(byte[] bytes, int length, string type)
+        {
+            int index = 8;
+            string chunkType;
+
+            while (index + 8 <= length)
+            {
+                chunkType = Encoding.ASCII.GetString(bytes, index + 4, 4);
+                if (chunkType == type)
+                {
+                    return true;
+                }
+                if (chunkType == "IDAT")
+                {
+                    return false;
+                }
+                // Length, type, data and CRC.
+                index += 12 + (int)Math.Min(ReadBigEndian(bytes, index), (uint)length);
+            }
+
+            return false;
+        }
+
+        private static ImageHeader ProbeBmp(byte[] bytes, int length)
+        {
+            int bitsPerPixel;
+
+            if (length < 30 || bytes[0] != 'B' || bytes[1] != 'M')
+            {
+                return null;
+            }
+
+            bitsPerPixel = bytes[28] | (bytes[29] << 8);
+            // Negative heights are top down bitmaps. GDI+ reads 32bpp bitmaps without alpha.
+            return new ImageHeader(STR_FORMAT_BMP, BitConverter.ToInt32(bytes, 18), Math.Abs(BitConverter.ToInt32(bytes, 22)), false, bitsPerPixel <= 8);
+        }
+
+        private static ImageHeader ProbeGif(byte[] bytes, int length)
+        {
+            string signature;
+
+            if (length < 10)
+            {
+                return null;
+            }
+            signature = Encoding.ASCII.GetString(bytes, 0, 6);
+            if (signature != "GIF87a" && signature != "GIF89a")
+            {
+                return null;
+            }
+
+            return new ImageHeader(STR_FORMAT_GIF, bytes[6] | (bytes[7] << 8), bytes[8] | (bytes[9] << 8), false, true);
+        }
+
+        private static ImageHeader ProbeJpeg(byte[] bytes, int length)
+        {
+            int index = 2;
+
+            if (length < 4 || bytes[0] != 0xFF || bytes[1] != 0xD8)
+            {
+                return null;
+            }
+
+            // Walk the segments until the start of frame, which holds the size.
+            while (index + 9 < length)
+            {
+                byte marker;
+                int segmentLength;
+
+                if (bytes[index] != 0xFF)
+                {
+                    return null;
+                }
+                marker = bytes[index + 1];
+                if (marker == 0xFF)
+                {   // Padding.
+                    index += 1;
+                    continue;
+                }
+                segmentLength = (bytes[index + 2] << 8) | bytes[index + 3];
+
+                if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)
+                {
+                    return new ImageHeader(STR_FORMAT_JPEG, (bytes[index + 7] << 8) | bytes[index + 8], (bytes[index + 5] << 8) | bytes[index + 6], false, false);
+                }
+                index += 2 + segmentLength;
+            }
+
+            return null;
+        }
+
+        private static ImageHeader ProbePcx(byte[] bytes, int length)
+        {
+            if (!PcxReader.IsSupported(bytes, length))
+            {
+                return null;
+            }
+
+            return new ImageHeader(STR_FORMAT_PCX, PcxReader.GetWidth(bytes), PcxReader.GetHeight(bytes), false, bytes[65] == 1);
+        }
+
+        private static ImageHeader ProbeTga(byte[] bytes, int length)
+        {
+            if (!TgaReader.IsSupported(bytes, length))
+            {
+                return null;
+            }
+
+            return new ImageHeader(STR_FORMAT_TGA, bytes[12] | (bytes[13] << 8), bytes[14] | (bytes[15] << 8), TgaReader.HasAlpha(bytes), bytes[1] == 1);
+        }
+
+        private static uint ReadBigEndian(byte[] bytes, int offset)
+        {
+            return ((uint)bytes[offset] << 24) | ((uint)bytes[offset + 1] << 16) | ((uint)bytes[offset + 2] << 8) | bytes[offset + 3];
+        }
+    }
+}
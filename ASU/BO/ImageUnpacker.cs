@@ -5,7 +5,7 @@ using System.Drawing;
 
 namespace ASU.BO
 {
-    public class ImageUnpacker
+    public class ImageUnpacker : IDisposable
     {
         public bool IsLarge { get; set; }
 
@@ -27,9 +27,40 @@ namespace ASU.BO
         private System.Drawing.Imaging.ColorPalette pallette = null;
         private bool _isBackgroundColourSet = false;
         private bool _isUnpacking = false;
+        private CancellationFlag cancellation = new CancellationFlag();
+        private bool removeTransparency;
+        private string cacheKey = null;
+        private ulong? pixelHash = null;
+        private List<Rectangle> fragments = new List<Rectangle>();
+        private BoxGrid fragmentGrid = null;
+        private bool areFragmentsComplete = false;
+        private ForegroundIndex foreground = null;
+        // -1 unless the image has an alpha channel and foreground is to be read from it rather than from the background colour.
+        private int alphaThreshold = -1;
+        private bool isBackgroundTransparent = false;
+        // Set while a PNG is still being decoded into decodedPixels, until original has been made from them.
+        private PngReader reader = null;
+        private IPixelStore decodedPixels = null;
+        // Very large sheets are decoded to a file, which is kept for export to crop frames from. There is never a full
+        // size Bitmap of these, original is only a scaled down preview.
+        private RawPixelFile rawPixels = null;
+        // Set for anything other than a PNG, until it has been loaded into original.
+        private string sourcePath = null;
+        private string sourceFormat = null;
+        private bool isTransparencyRemovalPending = false;
+        private bool areDecodedRowsScanned = false;
+        private bool isLoadQueued = false;
+        private bool isDisposed = false;
+        // Set when the file passed the header probe but could not be decoded after all.
+        private Exception loadError = null;
+        // Shared by every unpacker, so a big drop decodes a few sheets at a time rather than all of them at once.
+        private static WorkerPool decodePool = new WorkerPool(Environment.ProcessorCount, "Decode thread");
         private const int INT_MAX_REGION_WIDTH = 400;
+        private const long LONG_PREVIEW_MAX_PIXELS = 4000000;
 
         public string FileName { get; set; }
+        // The file the image is decoded from when it comes to be unpacked, null for images handed over already loaded.
+        public string FilePath { get; private set; }
         public int ColoursCount = 0;
 
         public event UnpackingCompleteEventHandler UnpackingComplete;        
@@ -46,7 +77,12 @@ namespace ASU.BO
             }
             this.original = new Bitmap((Bitmap)image.Clone());
             this.originalSize = image.Size;
-            if (removeTransparency)
+            this.removeTransparency = removeTransparency;
+            if (UI.MainForm.AlphaThreshold >= 0 && Image.IsAlphaPixelFormat(image.PixelFormat))
+            {   // Leave the alpha alone until it is known whether there is any transparency to go by.
+                this.alphaThreshold = UI.MainForm.AlphaThreshold;
+            }
+            else if (removeTransparency)
             {
                 this.original = this.RemoveTransparencyFromImage(this.original);
             }
@@ -55,6 +91,148 @@ namespace ASU.BO
             this.IsLarge = (this.original.Width * this.original.Height) > (800 * 800);
         }
 
+        /// <summary>
+        /// Only the header has been read so far. The pixels are decoded by the unpack thread when it starts, so dropping
+        /// a lot of files does not mean decoding them all on the UI thread first. PNGs are decoded a band of rows at a
+        /// time alongside the unpacking, anything else is loaded through GDI+ in one go.
+        /// </summary>
+        public ImageUnpacker(string path, ImageHeader header, string fileName, bool removeTransparency)
+        {
+            if (header.Format == ImageHeader.STR_FORMAT_PNG)
+            {
+                this.reader = PngReader.TryOpen(path);
+            }
+            if (this.reader == null)
+            {
+                this.sourcePath = path;
+                this.sourceFormat = header.Format;
+            }
+
+            this.FilePath = path;
+            this.originalSize = header.Size;
+            this.removeTransparency = removeTransparency;
+            if (UI.MainForm.AlphaThreshold >= 0 && header.HasAlpha)
+            {
+                this.alphaThreshold = UI.MainForm.AlphaThreshold;
+            }
+            else if (removeTransparency && (header.HasAlpha || this.sourcePath != null) && !(this.reader != null && this.IsHuge()))
+            {   // GDI+ can find transparency the header does not mention, in GIFs and the like. Very large PNGs are too big
+                // to flatten in a Bitmap, their colours are counted with the alpha as it is.
+                this.isTransparencyRemovalPending = true;
+            }
+            this.boxes = new List<Rectangle>();
+            this.FileName = fileName;
+            this.IsLarge = (this.originalSize.Width * this.originalSize.Height) > (800 * 800);
+        }
+
+        /// <summary>
+        /// Queues the PNG decode on the decode pool, if it has not been already.
+        /// </summary>
+        private void StartDecoding()
+        {
+            lock ((this.originalLock))
+            {
+                if (this.reader == null || this.decodedPixels != null)
+                {
+                    return;
+                }
+
+                if (this.IsHuge())
+                {
+                    this.rawPixels = new RawPixelFile(this.originalSize.Width, this.originalSize.Height, System.IO.Path.GetTempPath());
+                    this.decodedPixels = this.rawPixels;
+                }
+                else
+                {
+                    this.decodedPixels = new PixelBuffer(this.originalSize.Width, this.originalSize.Height);
+                }
+                this.reader.Target = this.decodedPixels;
+                decodePool.Queue(this.reader.Decode);
+            }
+        }
+
+        /// <summary>
+        /// Gets the image decoding on the decode pool ahead of unpacking, so it is ready by the time this unpacker's
+        /// turn comes. Unpacking does not depend on this, it loads the image itself if it has not been already.
+        /// </summary>
+        public void StartLoading()
+        {
+            CancellationFlag cancellation;
+
+            lock ((this.originalLock))
+            {
+                if (this.reader != null)
+                {
+                    this.StartDecoding();
+                    return;
+                }
+                if (this.sourcePath == null || this.isLoadQueued)
+                {
+                    return;
+                }
+                this.isLoadQueued = true;
+                cancellation = this.cancellation;
+            }
+
+            decodePool.Queue(delegate()
+            {
+                if (cancellation.IsCancelled)
+                {   // Unpacking has already started, or the sheet was dropped, so leave the loading to the unpack.
+                    return;
+                }
+                lock ((this.originalLock))
+                {
+                    this.EnsureOriginal();
+                }
+            });
+        }
+
+        /// <summary>
+        /// True once the image is fully in memory, so unpacking it will not have to wait on the disk.
+        /// </summary>
+        public bool IsLoaded()
+        {
+            PngReader decoding = this.reader;
+
+            return this.original != null || (decoding != null && decoding.IsFinished);
+        }
+
+        /// <summary>
+        /// True when GetOriginalClone gives a scaled down preview, for sheets too big to hold as a Bitmap. Frames then
+        /// have to be cropped from CreatePixelSource.
+        /// </summary>
+        public bool IsOriginalPreview()
+        {
+            return this.rawPixels != null;
+        }
+
+        /// <summary>
+        /// Sheets past the RawPixelStoreMinimumMegapixels setting are kept off the managed heap where possible.
+        /// </summary>
+        private bool IsHuge()
+        {
+            return UI.MainForm.RawPixelStoreMegapixels > 0 && ((long)this.originalSize.Width * this.originalSize.Height) > (UI.MainForm.RawPixelStoreMegapixels * 1000000L);
+        }
+
+        /// <summary>
+        /// Somewhere to crop frames from for export. For very large sheets this reads from the raw pixel file
+        /// rather than copying the whole sheet out of the Bitmap again, otherwise the pixels are copied straight out of
+        /// original without cloning it first.
+        /// </summary>
+        public IPixelStore CreatePixelSource()
+        {
+            lock ((this.originalLock))
+            {
+                if (this.rawPixels != null)
+                {
+                    return this.rawPixels;
+                }
+
+                this.EnsureOriginal();
+                return PixelBuffer.FromBitmap(this.original);
+            }
+        }
+
         private Bitmap RemoveTransparencyFromImage(Bitmap image)
         {
             Dictionary<int, Color> coloursByArgb = new Dictionary<int, Color>();
@@ -123,6 +301,10 @@ namespace ASU.BO
 
         public System.Drawing.Imaging.ColorPalette GetPallette()
         {
+            lock ((this.originalLock))
+            {   // Not known until the image is loaded.
+                this.EnsureOriginal();
+            }
             return this.pallette;
         }
 
@@ -169,6 +351,15 @@ namespace ASU.BO
             }
         }
 
+        /// <summary>
+        /// True when foreground was found from the alpha channel, in which case the background colour is only for display
+        /// and exported frames already have their transparency.
+        /// </summary>
+        public bool IsBackgroundTransparent()
+        {
+            return this.isBackgroundTransparent;
+        }
+
         public List<Rectangle> GetBoxes()
         {
             return new List<Rectangle>(this.boxes);
@@ -190,12 +381,154 @@ namespace ASU.BO
 
             lock ((this.originalLock))
             {
+                this.EnsureOriginal();
                 clone = new Bitmap((Bitmap)this.original.Clone());
             }
 
             return clone;
         }
 
+        /// <summary>
+        /// True when the file could not be decoded, in which case this unpacker stops and is of no further use.
+        /// </summary>
+        public bool HasFailedToLoad()
+        {
+            return this.loadError != null;
+        }
+
+        /// <summary>
+        /// Makes original from the file or decoded pixels if it has not been already, waiting on the decode if need be.
+        /// Must be called holding originalLock. A file which cannot be decoded throws the same error every time.
+        /// </summary>
+        private void EnsureOriginal()
+        {
+            if (this.loadError != null)
+            {
+                throw this.loadError;
+            }
+
+            try
+            {
+                this.LoadOriginal();
+            }
+            catch (ArgumentException ex)
+            {   // What GDI+ throws for files it cannot read.
+                this.loadError = ex;
+                throw;
+            }
+            catch (OutOfMemoryException ex)
+            {   // GDI+ reports some broken files this way too.
+                if (this.original != null)
+                {
+                    throw;
+                }
+                this.loadError = ex;
+                throw;
+            }
+            catch (System.IO.InvalidDataException ex)
+            {
+                this.loadError = ex;
+                throw;
+            }
+        }
+
+        private void LoadOriginal()
+        {
+            if (this.original != null)
+            {
+                return;
+            }
+            if (this.isDisposed)
+            {
+                throw new ObjectDisposedException("ImageUnpacker");
+            }
+
+            if (this.sourcePath != null)
+            {
+                if (this.sourceFormat == ImageHeader.STR_FORMAT_TGA)
+                {
+                    this.original = TgaReader.Read(this.sourcePath).ToBitmap();
+                }
+                else if (this.sourceFormat == ImageHeader.STR_FORMAT_PCX)
+                {
+                    this.original = PcxReader.Read(this.sourcePath).ToBitmap();
+                }
+                else
+                {
+                    using (Bitmap loaded = new Bitmap(this.sourcePath))
+                    {
+                        if (loaded.Palette.Entries.Length > 0)
+                        {
+                            this.pallette = loaded.Palette;
+                        }
+                        this.original = new Bitmap(loaded);
+                    }
+                }
+                this.sourcePath = null;
+                if (this.isTransparencyRemovalPending)
+                {
+                    this.original = this.RemoveTransparencyFromImage(this.original);
+                }
+                return;
+            }
+
+            this.StartDecoding();
+            if (this.reader.WaitForRows(this.originalSize.Height) < this.originalSize.Height)
+            {   // Aborted, and a part decoded image must not be kept as the original.
+                throw new OperationCanceledException("Decoding was aborted.");
+            }
+            if (this.rawPixels != null)
+            {
+                this.original = this.CreatePreview();
+                return;
+            }
+            this.original = this.decodedPixels.ToBitmap();
+            if (this.isTransparencyRemovalPending)
+            {   // Rows are never scanned as they are decoded in this case, so nothing else needs the decoded copy.
+                this.original = this.RemoveTransparencyFromImage(this.original);
+                this.decodedPixels = null;
+                this.reader = null;
+                this.DiscardRawPixels();
+            }
+        }
+
+        /// <summary>
+        /// Every nth pixel of every nth row of the raw pixels, n being whatever brings it down to a size that is safe to
+        /// have as a Bitmap.
+        /// </summary>
+        private Bitmap CreatePreview()
+        {
+            int step = (int)Math.Ceiling(Math.Sqrt((double)((long)this.originalSize.Width * this.originalSize.Height) / LONG_PREVIEW_MAX_PIXELS));
+            PixelBuffer preview;
+            int[] row = new int[this.originalSize.Width];
+            int[] previewRow;
+
+            step = Math.Max(1, step);
+            preview = new PixelBuffer((this.originalSize.Width + step - 1) / step, (this.originalSize.Height + step - 1) / step);
+            previewRow = new int[preview.Width];
+
+            for (int y = 0; y < preview.Height; y++)
+            {
+                this.rawPixels.ReadRow(y * step, row, 0);
+                for (int x = 0; x < preview.Width; x++)
+                {
+                    previewRow[x] = row[x * step];
+                }
+                preview.WriteRow(y, previewRow, 0);
+            }
+
+            return preview.ToBitmap();
+        }
+
+        private void DiscardRawPixels()
+        {
+            if (this.rawPixels != null)
+            {
+                this.rawPixels.Dispose();
+                this.rawPixels = null;
+            }
+        }
+
         private void SetPcComplete(int pcComplete)
         {
             if(pcComplete > 100)
@@ -214,15 +547,87 @@ namespace ASU.BO
 
         public void StartUnpacking()
         {
-            System.Threading.Thread newThread = new System.Threading.Thread(this.Unpack);
-            this.isUnpackingComplete = false;
-            this.pcComplete = 0;
-            this.boxes.Clear();
-            this._isUnpacking = true;
-            this.threadCounter = 0;
-            this.threadCompleteCounter = 0;
+            this.StartThread(this.Unpack, true);
+        }
+
+        /// <summary>
+        /// Re-runs just the merge over the fragments kept from the last full unpack, e.g. after DistanceBetweenTiles changes.
+        /// </summary>
+        public void StartMerging()
+        {
+            this.StartThread(this.Merge, false);
+        }
+
+        public bool CanMerge()
+        {
+            return this.areFragmentsComplete;
+        }
+
+        private void StartThread(System.Threading.ParameterizedThreadStart start, bool discardFragments)
+        {
+            System.Threading.Thread newThread = new System.Threading.Thread(start);
+            CancellationFlag cancellation;
+
+            // Stop any threads still running from a previous unpack before waiting on them to release the counters.
+            this.cancellation.Cancel();
+            lock ((this.threadCompleteCounterLock))
+            {
+                this.cancellation = new CancellationFlag();
+                cancellation = this.cancellation;
+
+                this.isUnpackingComplete = false;
+                this.pcComplete = 0;
+                lock ((this.boxesLock))
+                {
+                    this.boxes.Clear();
+                    if (discardFragments)
+                    {
+                        this.fragments.Clear();
+                        this.fragmentGrid = null;
+                        this.areFragmentsComplete = false;
+                    }
+                }
+                this._isUnpacking = true;
+                this.threadCounter = 0;
+                this.threadCompleteCounter = 0;
+                this.areaUnpacked = 0;
+            }
             newThread.IsBackground = true;
-            newThread.Start();
+            newThread.Start(cancellation);
+        }
+
+        public void CancelUnpacking()
+        {
+            PngReader decoding = this.reader;
+
+            this.cancellation.Cancel();
+            if (decoding != null)
+            {
+                decoding.Abort();
+            }
+            lock ((this.threadCompleteCounterLock))
+            {
+                this._isUnpacking = false;
+            }
+        }
+
+        /// <summary>
+        /// Stops any unpacking and deletes the raw pixel file of a very large sheet, which would otherwise stay open on
+        /// disk until the unpacker happened to be collected.
+        /// </summary>
+        public void Dispose()
+        {
+            this.CancelUnpacking();
+            lock ((this.originalLock))
+            {
+                this.isDisposed = true;
+                if (this.rawPixels != null)
+                {
+                    this.decodedPixels = null;
+                    this.reader = null;
+                    this.DiscardRawPixels();
+                }
+            }
         }
 
         public static List<Rectangle> OrderBoxes(List<Rectangle> boxes, Enums.SelectAllOrder selectAllOrder, Size spriteSheetSize)
@@ -267,6 +672,8 @@ namespace ASU.BO
 
         private void Unpack(object state)
         {
+            CancellationFlag cancellation = (CancellationFlag)state;
+
             try
             {
                 int subRegionCount;
@@ -279,12 +686,63 @@ namespace ASU.BO
                 System.Threading.Thread regionThread = null;
 
                 this.areAllThreadsCreated = false;
+                this.cacheKey = null;
+                if (this.reader != null && !this.areDecodedRowsScanned && !this.isTransparencyRemovalPending)
+                {
+                    this.StartDecoding();
+                    this.ScanDecodedRows(cancellation);
+                    if (cancellation.IsCancelled)
+                    {
+                        return;
+                    }
+                }
+                if (UI.MainForm.UnpackCache != null)
+                {
+                    if (this.LoadFromCache(cancellation))
+                    {
+                        return;
+                    }
+                }
+
+                if (this.alphaThreshold >= 0 && this.foreground == null)
+                {
+                    this.SetAlphaForeground();
+                }
                 if (!this.backgroundColour.HasValue)
                 {
-                    this.SetBackgroundColour(this.GetOriginalClone());
+                    this.SetBackgroundColour(this.GetOriginalClone(), cancellation);
+                }
+                if (cancellation.IsCancelled)
+                {
+                    return;
+                }
+                if (this.foreground == null)
+                {   // Neither the image nor its background colour change, so this only ever needs building once.
+                    using (Bitmap img = this.GetOriginalClone())
+                    {
+                        this.foreground = new ForegroundIndex(new ForegroundMask(img, this.backgroundColour.Value, UI.MainForm.BackgroundColourTolerance), !this.IsHuge());
+                    }
                 }
                 this.SetPcComplete(10);
 
+                if (UI.MainForm.DetectUniformGrids && this.foreground.HasSums)
+                {   // Profiling every row and column is only quick with the summed-area table.
+                    List<Rectangle> cellBoxes = GridDetector.GetCellBoxes(this.foreground);
+
+                    if (cellBoxes != null)
+                    {   // Kept as the fragments and merged like any others, so DistanceBetweenTiles applies to grids too.
+                        lock ((this.boxesLock))
+                        {
+                            this.fragments.AddRange(cellBoxes);
+                            this.fragmentGrid = new BoxGrid(this.fragments);
+                            this.areFragmentsComplete = true;
+                        }
+                        RegionUnpacker.CombineBoxes(ref cellBoxes, this.foreground, cancellation);
+                        this.CompleteUnpack(cellBoxes, cancellation);
+                        return;
+                    }
+                }
+
                 if(Environment.ProcessorCount > 1)
                 {
                     subRegionCount = 4;
@@ -306,9 +764,9 @@ namespace ASU.BO
                     for (int x = 0; x < this.originalSize.Width; x += xSize)
                     {
                         region = new Rectangle(x, y, Math.Min(xSize+1, (this.originalSize.Width - x) - 1), Math.Min(ySize+1, (this.originalSize.Height - y) - 1));
-                        regionThread = new System.Threading.Thread(this.HandleDividedAreaThread);
+                        Rectangle threadRegion = region;
+                        regionThread = new System.Threading.Thread(delegate() { this.HandleDividedAreaThread(threadRegion, cancellation); });
                         regionThread.Name = "Region thread " + (y * (xSize * 4)) + x;
-                        this.threadCounter += 1;
                         regionThread.IsBackground = true;
                         
                         regionThreads.Add(regionThread);
@@ -316,29 +774,54 @@ namespace ASU.BO
                     }
                 }
 
+                lock ((this.threadCompleteCounterLock))
+                {
+                    if (cancellation.IsCancelled)
+                    {
+                        return;
+                    }
+                    this.threadCounter = regionThreads.Count;
+                }
+
                 for (int k = 0; k < regionThreads.Count; k++)
                 {
-                    regionThreads[k].Start(regions[k]);
+                    regionThreads[k].Start();
                     this.SetPcComplete(10 + Convert.ToInt32((((Math.Min(regions[k].Y, this.originalSize.Height) * (this.originalSize.Width - 1)) + Math.Min(regions[k].X, this.originalSize.Width)) / totalSize) * 10));
                 }
 
                 this.SetPcComplete(20);
-                this.areAllThreadsCreated = true;
                 lock ((this.threadCompleteCounterLock))
                 {
+                    if (cancellation.IsCancelled)
+                    {
+                        return;
+                    }
+                    this.areAllThreadsCreated = true;
                     if (this.threadCompleteCounter == this.threadCounter)
                     {
-                        this.HandleUnpackComplete();
+                        this.HandleUnpackComplete(cancellation);
                     }
                 }
             }
             catch (Exception ex)
             {
+                if (cancellation.IsCancelled)
+                {   // Most likely the decode being aborted underneath it, either way the result is no longer wanted.
+                    return;
+                }
+                if (this.loadError != null)
+                {   // Not a fault in the unpacking, the form finds these and deals with the file as it would at the drop.
+                    lock ((this.threadCompleteCounterLock))
+                    {
+                        this._isUnpacking = false;
+                    }
+                    return;
+                }
                 ForkandBeard.Logic.ExceptionHandler.HandleException(ex, "cat@forkandbeard.co.uk");
             }
         }
 
-        private void HandleDividedAreaThread(object regionObject)
+        private void HandleDividedAreaThread(Rectangle region, CancellationFlag cancellation)
         {
             try
             {
@@ -347,7 +830,12 @@ namespace ASU.BO
                     System.Threading.Thread.Sleep(25);
                 }
 
-                this.HandleDividedArea((Rectangle)regionObject, true, this.GetOriginalClone());
+                if (cancellation.IsCancelled)
+                {
+                    return;
+                }
+
+                this.HandleDividedArea(region, true, cancellation);
             }
             catch (Exception ex)
             {
@@ -356,9 +844,21 @@ namespace ASU.BO
         }
 
 
-        private void HandleDividedArea(Rectangle region, bool updateCounter, Bitmap image)
+        private void HandleDividedArea(Rectangle region, bool updateCounter, CancellationFlag cancellation)
         {
-            if (region.Width > INT_MAX_REGION_WIDTH || region.Height > INT_MAX_REGION_WIDTH)
+            if (cancellation.IsCancelled)
+            {
+                return;
+            }
+
+            if (!this.foreground.ContainsForeground(region.Left, region.Top, region.Right, region.Bottom))
+            {   // Nothing to find anywhere in here, so skip the whole area rather than subdividing or scanning it.
+                lock ((this.areaUnpackedLock))
+                {
+                    this.areaUnpacked += region.Width * region.Height;
+                }
+            }
+            else if (region.Width > INT_MAX_REGION_WIDTH || region.Height > INT_MAX_REGION_WIDTH)
             {
                 List<Rectangle> quarterRegions = new List<Rectangle>();
 
@@ -372,14 +872,24 @@ namespace ASU.BO
                 quarterRegions.Add(new Rectangle(region.X + Convert.ToInt32(region.Width / 2), region.Y + Convert.ToInt32(region.Height / 2), Convert.ToInt32(region.Width / 2) + 1, Convert.ToInt32(region.Height / 2) + 1));
                 foreach (Rectangle quarter in quarterRegions)
                 {
-                    this.HandleDividedArea(quarter, false, image);
+                    this.HandleDividedArea(quarter, false, cancellation);
                 }
             }
             else
             {
-                using (RegionUnpacker unpacker = new RegionUnpacker(image, region, this.backgroundColour.Value))
+                // Regions take in their Right and Bottom edges. Scanning only the part of the region which has foreground
+                // in it finds exactly the same boxes, as every box starts on a foreground pixel within the region.
+                Rectangle used = this.foreground.GetForegroundBounds(region.Left, region.Top, region.Right, region.Bottom);
+                Rectangle scanRegion = new Rectangle(used.Left, used.Top, used.Width - 1, used.Height - 1);
+
+                using (RegionUnpacker unpacker = new RegionUnpacker(scanRegion, this.foreground, cancellation))
                 {
                     unpacker.UnpackRegion();
+                    if (cancellation.IsCancelled)
+                    {
+                        return;
+                    }
+
                     lock ((this.areaUnpackedLock))
                     {
                         this.areaUnpacked += Convert.ToInt32((double)(region.Width * region.Height) * 0.8f);
@@ -389,7 +899,11 @@ namespace ASU.BO
 
                     lock ((this.boxesLock))
                     {
-                        this.boxes.AddRange(unpacker.Boxes);
+                        if (!cancellation.IsCancelled)
+                        {
+                            this.boxes.AddRange(unpacker.Boxes);
+                            this.fragments.AddRange(unpacker.Fragments);
+                        }
                     }
                 }
 
@@ -405,69 +919,349 @@ namespace ASU.BO
             {
                 lock ((this.threadCompleteCounterLock))
                 {
+                    if (cancellation.IsCancelled)
+                    {
+                        return;
+                    }
                     this.threadCompleteCounter += 1;
                     if (this.areAllThreadsCreated && this.threadCompleteCounter == this.threadCounter)
                     {
-                        this.HandleUnpackComplete();
+                        this.HandleUnpackComplete(cancellation);
                     }
                 }
             }
         }
 
-        private void SetBackgroundColour(Bitmap image)
+        /// <summary>
+        /// Builds the foreground straight from the alpha channel, which saves both finding the background colour and removing
+        /// the transparency. Only images whose border is mostly transparent are taken to have a transparent background,
+        /// anything else goes back to the usual way.
+        /// </summary>
+        private void SetAlphaForeground()
+        {
+            ForegroundMask mask;
+
+            using (Bitmap img = this.GetOriginalClone())
+            {
+                mask = new ForegroundMask(img, this.alphaThreshold);
+            }
+
+            if (mask.IsBorderMostlyBackground())
+            {
+                this.foreground = new ForegroundIndex(mask, !this.IsHuge());
+                this.UseTransparentBackground();
+            }
+            else
+            {
+                this.UseBackgroundColour();
+            }
+        }
+
+        private void UseTransparentBackground()
+        {
+            this.isBackgroundTransparent = true;
+            // Only used to draw behind the image.
+            this.backgroundColour = Color.White;
+            // Colours are not counted in this mode.
+            this.ColoursCount = -1;
+            this._isBackgroundColourSet = true;
+        }
+
+        private void UseBackgroundColour()
+        {
+            if (this.removeTransparency && this.rawPixels == null)
+            {   // Very large sheets have no full size Bitmap to flatten, so keep their alpha.
+                lock ((this.originalLock))
+                {
+                    this.EnsureOriginal();
+                    this.original = this.RemoveTransparencyFromImage(this.original);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Hashes the pixels and either builds the alpha foreground or counts the colours, a band of rows at a time as the
+        /// decoder finishes them. This one pass stands in for the hash, SetAlphaForeground and SetBackgroundColour passes,
+        /// which would otherwise each have to wait for the whole decode.
+        /// </summary>
+        private void ScanDecodedRows(CancellationFlag cancellation)
         {
-            Dictionary<int, int> colourCountsByArgb = new Dictionary<int, int>();
-            Color presentColour; 
-            int maxCount = 0;
+            ForkandBeard.Util.Text.XXHash64 hash = null;
+            ForegroundMask alphaMask = null;
+            ColourCounter counter = null;
+            ForegroundMask colourMask;
+            int width = this.originalSize.Width;
+            int height = this.originalSize.Height;
+            int[] row = new int[width];
+            byte[] rowBytes = new byte[width * 4];
+            int rowsReady;
+            int y = 0;
+
+            if (UI.MainForm.UnpackCache != null && !this.pixelHash.HasValue)
+            {
+                hash = new ForkandBeard.Util.Text.XXHash64();
+            }
+            if (this.alphaThreshold >= 0)
+            {
+                alphaMask = new ForegroundMask(width, height, this.alphaThreshold);
+            }
+            if (this.alphaThreshold < 0 || this.rawPixels != null)
+            {   // Very large sheets have no full size Bitmap to count the colours of later, should the alpha not do.
+                counter = new ColourCounter(height);
+            }
 
-            for (int x = 0; x <= this.originalSize.Width - 1; x++)
+            while (y < height)
             {
-                for (int y = 0; y <= this.originalSize.Height - 1; y++)
+                if (cancellation.IsCancelled)
                 {
-                    presentColour = image.GetPixel(x, y);
+                    return;
+                }
 
-                    if (!colourCountsByArgb.ContainsKey(presentColour.ToArgb()))
+                try
+                {
+                    rowsReady = this.reader.WaitForRows(y + 1);
+                }
+                catch (System.IO.InvalidDataException ex)
+                {
+                    this.loadError = ex;
+                    throw;
+                }
+                for (; y < rowsReady; y++)
+                {
+                    this.decodedPixels.ReadRow(y, row, 0);
+                    if (hash != null)
+                    {   // Same bytes as UnpackCache.HashPixels reads from a Bitmap.
+                        Buffer.BlockCopy(row, 0, rowBytes, 0, rowBytes.Length);
+                        hash.Update(rowBytes, 0, rowBytes.Length);
+                    }
+                    if (alphaMask != null)
                     {
-                        colourCountsByArgb.Add(presentColour.ToArgb(), 1);
+                        alphaMask.AddRow(y, row, 0);
                     }
-                    else
+                    if (counter != null)
                     {
-                        colourCountsByArgb[presentColour.ToArgb()] += 1;
+                        counter.AddRow(y, row, 0, width);
                     }
+                }
+                this.SetPcComplete(Convert.ToInt32(((double)y / (double)height) * 10));
+            }
+
+            if (hash != null)
+            {
+                this.pixelHash = hash.Digest();
+            }
+
+            if (alphaMask != null && alphaMask.IsBorderMostlyBackground())
+            {
+                this.foreground = new ForegroundIndex(alphaMask, !this.IsHuge());
+                this.UseTransparentBackground();
+            }
+            else if (counter == null)
+            {
+                this.UseBackgroundColour();
+            }
+            else
+            {
+                this.backgroundColour = counter.GetMostCommon();
+                this.ColoursCount = counter.Count - 1;
+                this._isBackgroundColourSet = true;
+
+                // Every row is in by now, so this is just one more pass over memory.
+                colourMask = new ForegroundMask(width, height, this.backgroundColour.Value, UI.MainForm.BackgroundColourTolerance);
+                for (y = 0; y < height; y++)
+                {
+                    this.decodedPixels.ReadRow(y, row, 0);
+                    colourMask.AddRow(y, row, 0);
+                }
+                this.foreground = new ForegroundIndex(colourMask, !this.IsHuge());
+            }
+
+            lock ((this.originalLock))
+            {   // The Bitmap, or the raw pixels for very large sheets, is all that is needed from here on, so the decoded copy can go.
+                this.EnsureOriginal();
+                this.decodedPixels = null;
+                this.reader = null;
+            }
+            this.areDecodedRowsScanned = true;
+        }
 
-                    if ((x + y) % 100 == 0)
+        private void SetBackgroundColour(Bitmap image, CancellationFlag cancellation)
+        {
+            ColourCounter counter = new ColourCounter(this.originalSize.Height);
+            System.Drawing.Imaging.BitmapData data;
+            int[] row = new int[this.originalSize.Width];
+            int height = this.originalSize.Height;
+
+            try
+            {
+                data = image.LockBits(new Rectangle(0, 0, this.originalSize.Width, height), System.Drawing.Imaging.ImageLockMode.ReadOnly, System.Drawing.Imaging.PixelFormat.Format32bppArgb);
+                try
+                {
+                    for (int y = 0; y < height; y++)
                     {
-                        decimal total = 0;
+                        if (cancellation.IsCancelled)
+                        {
+                            return;
+                        }
+
+                        System.Runtime.InteropServices.Marshal.Copy(new IntPtr(data.Scan0.ToInt64() + ((long)y * data.Stride)), row, 0, row.Length);
+                        counter.AddRow(y, row, 0, row.Length);
 
-                        total = this.originalSize.Width * this.originalSize.Height;
-                        this.SetPcComplete(Convert.ToInt32((((x * (this.originalSize.Height - 1)) + y) / total) * 10));
+                        this.SetPcComplete(Convert.ToInt32(((double)(y + 1) / (double)height) * 10));
                     }
                 }
+                finally
+                {
+                    image.UnlockBits(data);
+                }
+            }
+            finally
+            {
+                image.Dispose();
+            }
+
+            this.backgroundColour = counter.GetMostCommon();
+            this._isBackgroundColourSet = true;
+            this.ColoursCount = counter.Count - 1;
+        }
+
+        private bool LoadFromCache(CancellationFlag cancellation)
+        {
+            Color cachedBackgroundColour;
+            int cachedColoursCount;
+            List<Rectangle> cachedBoxes;
+
+            this.cacheKey = this.CreateCacheKey();
+
+            if (!UI.MainForm.UnpackCache.TryLoad(this.cacheKey, out cachedBackgroundColour, out cachedColoursCount, out cachedBoxes))
+            {
+                return false;
             }
 
-            foreach (int colourArgb in colourCountsByArgb.Keys)
+            lock ((this.threadCompleteCounterLock))
             {
-                if (colourCountsByArgb[colourArgb] >= maxCount)
+                if (cancellation.IsCancelled)
+                {
+                    return true;
+                }
+
+                this.backgroundColour = cachedBackgroundColour;
+                this.ColoursCount = cachedColoursCount;
+                this._isBackgroundColourSet = true;
+                if (this.alphaThreshold >= 0)
+                {   // Only the alpha mode leaves the colours uncounted.
+                    if (cachedColoursCount == -1)
+                    {
+                        this.isBackgroundTransparent = true;
+                    }
+                    else
+                    {
+                        this.UseBackgroundColour();
+                    }
+                }
+                lock ((this.boxesLock))
                 {
-                    maxCount = colourCountsByArgb[colourArgb];
-                    this.backgroundColour = Color.FromArgb(colourArgb);
+                    this.boxes = cachedBoxes;
                 }
+                this.FinishUnpacking();
             }
-            image.Dispose();
-            this._isBackgroundColourSet = true;
-            this.ColoursCount = colourCountsByArgb.Count - 1;
+
+            return true;
         }
 
-        private void HandleUnpackComplete()
+        private string CreateCacheKey()
         {
-            using (Bitmap img = this.GetOriginalClone())
+            if (!this.pixelHash.HasValue)
+            {
+                using (Bitmap img = this.GetOriginalClone())
+                {
+                    this.pixelHash = UnpackCache.HashPixels(img);
+                }
+            }
+
+            return UnpackCache.CreateKey(this.pixelHash.Value, this.originalSize, UI.MainForm.DistanceBetweenTiles, this.removeTransparency, this.alphaThreshold, UI.MainForm.BackgroundColourTolerance, UI.MainForm.DetectUniformGrids);
+        }
+
+        private void Merge(object state)
+        {
+            CancellationFlag cancellation = (CancellationFlag)state;
+
+            try
+            {
+                List<Rectangle> merged;
+                BoxGrid grid;
+
+                lock ((this.boxesLock))
+                {
+                    merged = new List<Rectangle>(this.fragments);
+                    grid = new BoxGrid(this.fragmentGrid);
+                }
+                this.SetPcComplete(20);
+
+                RegionUnpacker.CombineBoxes(ref merged, grid, this.foreground, cancellation);
+                this.CompleteUnpack(merged, cancellation);
+            }
+            catch (Exception ex)
             {
+                ForkandBeard.Logic.ExceptionHandler.HandleException(ex, "cat@forkandbeard.co.uk");
+            }
+        }
+
+        /// <summary>
+        /// Finishes an unpack whose boxes were found without going through the region threads.
+        /// </summary>
+        private void CompleteUnpack(List<Rectangle> boxes, CancellationFlag cancellation)
+        {
+            lock ((this.threadCompleteCounterLock))
+            {
+                if (cancellation.IsCancelled)
+                {
+                    return;
+                }
+
                 lock ((this.boxesLock))
                 {
-                    RegionUnpacker.CombineBoxes(ref this.boxes, this.backgroundColour.Value, img);
+                    this.boxes = boxes;
+                }
+
+                if (UI.MainForm.UnpackCache != null)
+                {
+                    this.cacheKey = this.CreateCacheKey();
+                    UI.MainForm.UnpackCache.Save(this.cacheKey, this.backgroundColour.Value, this.ColoursCount, this.GetBoxes());
                 }
+
+                this.FinishUnpacking();
+            }
+        }
+
+        private void HandleUnpackComplete(CancellationFlag cancellation)
+        {
+            lock ((this.boxesLock))
+            {
+                RegionUnpacker.CombineBoxes(ref this.boxes, this.foreground, cancellation);
+            }
+
+            if (cancellation.IsCancelled)
+            {
+                return;
+            }
+
+            lock ((this.boxesLock))
+            {
+                this.fragmentGrid = new BoxGrid(this.fragments);
+                this.areFragmentsComplete = true;
             }
 
+            if (this.cacheKey != null)
+            {
+                UI.MainForm.UnpackCache.Save(this.cacheKey, this.backgroundColour.Value, this.ColoursCount, this.GetBoxes());
+            }
+
+            this.FinishUnpacking();
+        }
+
+        private void FinishUnpacking()
+        {
             this.isUnpackingComplete = true;
             this._isUnpacking = false;
             this.SetPcComplete(100);
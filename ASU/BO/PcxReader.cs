@@ -0,0 +1,187 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.IO;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Managed ZSoft PCX decoder, so PCX sheets do not have to go out to the third party converter.
+    /// Handles 256 colour and 24 bit images, along with the old 16 colour and monochrome ones.
+    /// </summary>
+    public class PcxReader
+    {
+        private const int INT_HEADER_LENGTH = 128;
+        private const byte BYTE_PALETTE_MARKER = 0x0C;
+
+        public static bool IsSupported(byte[] header, int length)
+        {
+            int bitsPerPixel;
+            int planes;
+
+            if (length < INT_HEADER_LENGTH || header[0] != 0x0A || header[2] != 1)
+            {
+                return false;
+            }
+            bitsPerPixel = header[3];
+            planes = header[65];
+
+            return (bitsPerPixel == 8 && (planes == 1 || planes == 3)) || (bitsPerPixel == 1 && (planes == 1 || planes == 4));
+        }
+
+        public static int GetWidth(byte[] header)
+        {
+            return (header[8] | (header[9] << 8)) - (header[4] | (header[5] << 8)) + 1;
+        }
+
+        public static int GetHeight(byte[] header)
+        {
+            return (header[10] | (header[11] << 8)) - (header[6] | (header[7] << 8)) + 1;
+        }
+
+        public static PixelBuffer Read(string path)
+        {
+            byte[] bytes = File.ReadAllBytes(path);
+            int width;
+            int height;
+            int bitsPerPixel;
+            int planes;
+            int bytesPerLine;
+            byte[] scanLine;
+            int[] palette;
+            int[] row;
+            int index = INT_HEADER_LENGTH;
+            PixelBuffer image;
+
+            if (!IsSupported(bytes, bytes.Length))
+            {
+                throw new InvalidDataException(String.Format("'{0}' is not a supported PCX.", path));
+            }
+
+            width = GetWidth(bytes);
+            height = GetHeight(bytes);
+            bitsPerPixel = bytes[3];
+            planes = bytes[65];
+            bytesPerLine = bytes[66] | (bytes[67] << 8);
+            if (width <= 0 || height <= 0 || bytesPerLine * 8 < width * bitsPerPixel)
+            {
+                throw new InvalidDataException(String.Format("'{0}' has a bad PCX header.", path));
+            }
+
+            palette = ReadPalette(bytes, bitsPerPixel, planes);
+            scanLine = new byte[bytesPerLine * planes];
+            row = new int[width];
+            image = new PixelBuffer(width, height);
+
+            for (int y = 0; y < height; y++)
+            {
+                index = DecodeScanLine(bytes, index, scanLine);
+
+                for (int x = 0; x < width; x++)
+                {
+                    if (bitsPerPixel == 8 && planes == 3)
+                    {   // One plane each of red, green and blue.
+                        row[x] = unchecked((int)0xFF000000) | (scanLine[x] << 16) | (scanLine[bytesPerLine + x] << 8) | scanLine[(bytesPerLine * 2) + x];
+                    }
+                    else if (bitsPerPixel == 8)
+                    {
+                        row[x] = palette[scanLine[x]];
+                    }
+                    else
+                    {   // One bit of the palette index from each plane.
+                        int paletteIndex = 0;
+
+                        for (int plane = 0; plane < planes; plane++)
+                        {
+                            if ((scanLine[(plane * bytesPerLine) + (x >> 3)] & (0x80 >> (x & 7))) != 0)
+                            {
+                                paletteIndex |= 1 << plane;
+                            }
+                        }
+                        row[x] = palette[paletteIndex];
+                    }
+                }
+                image.WriteRow(y, row, 0);
+            }
+
+            return image;
+        }
+
+        /// <summary>
+        /// Runs are a count byte with the top two bits set followed by the byte to repeat. They can carry on from one
+        /// plane into the next, but not past the end of the scan line.
+        /// </summary>
+        private static int DecodeScanLine(byte[] bytes, int index, byte[] scanLine)
+        {
+            int position = 0;
+
+            while (position < scanLine.Length)
+            {
+                byte value;
+                int count = 1;
+
+                if (index >= bytes.Length)
+                {
+                    throw new InvalidDataException("PCX pixel data is truncated.");
+                }
+                value = bytes[index++];
+                if ((value & 0xC0) == 0xC0)
+                {
+                    count = value & 0x3F;
+                    if (index >= bytes.Length)
+                    {
+                        throw new InvalidDataException("PCX pixel data is truncated.");
+                    }
+                    value = bytes[index++];
+                }
+
+                for (int i = 0; i < count && position < scanLine.Length; i++)
+                {
+                    scanLine[position++] = value;
+                }
+            }
+
+            return index;
+        }
+
+        /// <summary>
+        /// 256 colour palettes are tacked on the end of the file after a marker byte. Smaller ones live in the header.
+        /// </summary>
+        private static int[] ReadPalette(byte[] bytes, int bitsPerPixel, int planes)
+        {
+            int[] palette = new int[256];
+            int start;
+
+            if (bitsPerPixel == 8 && planes == 3)
+            {
+                return null;
+            }
+
+            if (bitsPerPixel == 8)
+            {
+                start = bytes.Length - 768;
+                if (start < INT_HEADER_LENGTH + 1 || bytes[start - 1] != BYTE_PALETTE_MARKER)
+                {
+                    throw new InvalidDataException("PCX 256 colour palette is missing.");
+                }
+            }
+            else if (planes == 1)
+            {   // Monochrome.
+                palette[0] = unchecked((int)0xFF000000);
+                palette[1] = unchecked((int)0xFFFFFFFF);
+                return palette;
+            }
+            else
+            {
+                start = 16;
+            }
+
+            for (int i = 0; i < (bitsPerPixel == 8 ? 256 : 16); i++)
+            {
+                palette[i] = unchecked((int)0xFF000000) | (bytes[start + (i * 3)] << 16) | (bytes[start + (i * 3) + 1] << 8) | bytes[start + (i * 3) + 2];
+            }
+
+            return palette;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.Drawing.Imaging;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// A plain managed ARGB image. Once the pixels are out of GDI+ they can be cropped, edited and encoded from any number
+    /// of threads at once, without the process wide locking GDI+ does around GetPixel, DrawImage, Clone and Save.
+    /// </summary>
+    public class PixelBuffer : IPixelStore
+    {
+        private int width;
+        private int height;
+        // Row after row, one ARGB int per pixel.
+        private int[] pixels;
+
+        public PixelBuffer(int width, int height)
+            : this(width, height, new int[width * height])
+        {
+        }
+
+        public PixelBuffer(int width, int height, int[] pixels)
+        {
+            if (pixels.Length != width * height)
+            {
+                throw new ArgumentException("Pixel count does not match the size.", "pixels");
+            }
+
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        /// <summary>
+        /// Copies the image out of GDI+ in one go. Indexed and 24bpp images come out as their ARGB colours.
+        /// </summary>
+        public static PixelBuffer FromBitmap(Bitmap image)
+        {
+            PixelBuffer buffer = new PixelBuffer(image.Width, image.Height);
+            BitmapData data;
+
+            data = image.LockBits(new Rectangle(0, 0, image.Width, image.Height), ImageLockMode.ReadOnly, PixelFormat.Format32bppArgb);
+            try
+            {
+                for (int y = 0; y < buffer.height; y++)
+                {
+                    System.Runtime.InteropServices.Marshal.Copy(new IntPtr(data.Scan0.ToInt64() + ((long)y * data.Stride)), buffer.pixels, y * buffer.width, buffer.width);
+                }
+            }
+            finally
+            {
+                image.UnlockBits(data);
+            }
+
+            return buffer;
+        }
+
+        public int Width
+        {
+            get { return this.width; }
+        }
+
+        public int Height
+        {
+            get { return this.height; }
+        }
+
+        public int[] Pixels
+        {
+            get { return this.pixels; }
+        }
+
+        public int GetPixel(int x, int y)
+        {
+            return this.pixels[(y * this.width) + x];
+        }
+
+        public void SetPixel(int x, int y, int argb)
+        {
+            this.pixels[(y * this.width) + x] = argb;
+        }
+
+        public void WriteRow(int y, int[] pixels, int offset)
+        {
+            Array.Copy(pixels, offset, this.pixels, y * this.width, this.width);
+        }
+
+        public void ReadRow(int y, int[] pixels, int offset)
+        {
+            Array.Copy(this.pixels, y * this.width, pixels, offset, this.width);
+        }
+
+        /// <summary>
+        /// Copies out the part of the image inside the area. Any of the area outside of the image is left fully transparent.
+        /// </summary>
+        public PixelBuffer Crop(Rectangle area)
+        {
+            PixelBuffer cropped = new PixelBuffer(area.Width, area.Height);
+            Rectangle inside = Rectangle.Intersect(area, new Rectangle(0, 0, this.width, this.height));
+
+            for (int y = inside.Top; y < inside.Bottom; y++)
+            {
+                Array.Copy(this.pixels, (y * this.width) + inside.Left, cropped.pixels, ((y - area.Top) * area.Width) + (inside.Left - area.Left), inside.Width);
+            }
+
+            return cropped;
+        }
+
+        /// <summary>
+        /// Copies the whole of the image in with its top left at the location. Nothing is blended.
+        /// </summary>
+        public void Draw(PixelBuffer image, int x, int y)
+        {
+            for (int row = 0; row < image.height; row++)
+            {
+                Array.Copy(image.pixels, row * image.width, this.pixels, ((y + row) * this.width) + x, image.width);
+            }
+        }
+
+        /// <summary>
+        /// Same as Bitmap.MakeTransparent, every pixel of the colour has its alpha cleared.
+        /// </summary>
+        public void MakeTransparent(Color colour)
+        {
+            int argb = colour.ToArgb();
+
+            for (int i = 0; i < this.pixels.Length; i++)
+            {
+                if (this.pixels[i] == argb)
+                {
+                    this.pixels[i] = argb & 0x00FFFFFF;
+                }
+            }
+        }
+
+        /// <summary>
+        /// XXHash64 of the size and pixels, so frames of different shapes with the same pixels hash differently.
+        /// </summary>
+        public ulong HashPixels()
+        {
+            ForkandBeard.Util.Text.XXHash64 hash = new ForkandBeard.Util.Text.XXHash64();
+            byte[] row = new byte[Math.Max(8, this.width * 4)];
+
+            Buffer.BlockCopy(new int[] { this.width, this.height }, 0, row, 0, 8);
+            hash.Update(row, 0, 8);
+            for (int y = 0; y < this.height; y++)
+            {
+                Buffer.BlockCopy(this.pixels, y * this.width * 4, row, 0, this.width * 4);
+                hash.Update(row, 0, this.width * 4);
+            }
+
+            return hash.Digest();
+        }
+
+        public bool IsSameAs(PixelBuffer other)
+        {
+            if (other.width != this.width || other.height != this.height)
+            {
+                return false;
+            }
+
+            for (int i = 0; i < this.pixels.Length; i++)
+            {
+                if (this.pixels[i] != other.pixels[i])
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        public bool IsOpaque()
+        {
+            for (int i = 0; i < this.pixels.Length; i++)
+            {
+                if (((uint)this.pixels[i] >> 24) != 0xFF)
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        public Bitmap ToBitmap()
+        {
+            Bitmap image = new Bitmap(this.width, this.height, PixelFormat.Format32bppArgb);
+            BitmapData data;
+
+            data = image.LockBits(new Rectangle(0, 0, this.width, this.height), ImageLockMode.WriteOnly, PixelFormat.Format32bppArgb);
+            try
+            {
+                for (int y = 0; y < this.height; y++)
+                {
+                    System.Runtime.InteropServices.Marshal.Copy(this.pixels, y * this.width, new IntPtr(data.Scan0.ToInt64() + ((long)y * data.Stride)), this.width);
+                }
+            }
+            finally
+            {
+                image.UnlockBits(data);
+            }
+
+            return image;
+        }
+    }
+}
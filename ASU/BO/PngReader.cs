@@ -0,0 +1,518 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.IO;
+using System.IO.Compression;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Managed PNG decoder which fills a pixel store a row at a time, so that whoever is waiting on the pixels can start on
+    /// the rows already done while later ones are still being inflated. Only handles the common 8 bit, non-interlaced
+    /// greyscale and truecolour PNGs; TryOpen returns null for anything else so it can go through GDI+ as before.
+    /// </summary>
+    public class PngReader
+    {
+        private const byte BYTE_COLOUR_TYPE_GREY = 0;
+        private const byte BYTE_COLOUR_TYPE_RGB = 2;
+        private const byte BYTE_COLOUR_TYPE_GREY_ALPHA = 4;
+        private const byte BYTE_COLOUR_TYPE_RGBA = 6;
+        // Rows are published to waiting readers in bands this high, rather than taking the lock for every row.
+        private const int INT_BAND_HEIGHT = 16;
+
+        private static readonly byte[] Signature = new byte[] { 137, 80, 78, 71, 13, 10, 26, 10 };
+
+        private string path;
+        private int width;
+        private int height;
+        private byte colourType;
+        private long firstDataChunkPosition;
+        private IPixelStore target = null;
+        private object rowsLock = new object();
+        private int rowsDecoded = 0;
+        private bool isFinished = false;
+        private volatile bool isAborted = false;
+        private Exception error = null;
+
+        private PngReader(string path)
+        {
+            this.path = path;
+        }
+
+        /// <summary>
+        /// Reads just the header chunks. Returns null if the file is not a PNG this reader can decode.
+        /// </summary>
+        public static PngReader TryOpen(string path)
+        {
+            PngReader reader = new PngReader(path);
+
+            try
+            {
+                using (FileStream stream = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read))
+                {
+                    if (!reader.ReadHeader(stream))
+                    {
+                        return null;
+                    }
+                }
+            }
+            catch (IOException)
+            {
+                return null;
+            }
+
+            return reader;
+        }
+
+        public int Width
+        {
+            get { return this.width; }
+        }
+
+        public int Height
+        {
+            get { return this.height; }
+        }
+
+        public bool HasAlpha
+        {
+            get { return this.colourType == BYTE_COLOUR_TYPE_RGBA || this.colourType == BYTE_COLOUR_TYPE_GREY_ALPHA; }
+        }
+
+        /// <summary>
+        /// Where the decoded rows go, which must be set before decoding starts. Rows are only safe to read once
+        /// WaitForRows has said they are done.
+        /// </summary>
+        public IPixelStore Target
+        {
+            get { return this.target; }
+            set { this.target = value; }
+        }
+
+        public bool IsFinished
+        {
+            get
+            {
+                lock ((this.rowsLock))
+                {
+                    return this.isFinished;
+                }
+            }
+        }
+
+        /// <summary>
+        /// Blocks until at least the given number of rows are decoded, and returns how many are. Once aborted it returns
+        /// early with however many there are, so callers should look to their own cancellation when it comes up short.
+        /// </summary>
+        public int WaitForRows(int rows)
+        {
+            lock ((this.rowsLock))
+            {
+                while (this.rowsDecoded < rows && !this.isFinished)
+                {
+                    System.Threading.Monitor.Wait(this.rowsLock);
+                }
+
+                if (this.error != null)
+                {
+                    throw new InvalidDataException(String.Format("Unable to decode '{0}'.", this.path), this.error);
+                }
+                if (this.rowsDecoded < rows && !this.isAborted)
+                {
+                    throw new InvalidDataException(String.Format("'{0}' ended before all of its rows were decoded.", this.path));
+                }
+
+                return this.rowsDecoded;
+            }
+        }
+
+        public void Abort()
+        {
+            this.isAborted = true;
+        }
+
+        public void Decode()
+        {
+            try
+            {
+                this.DecodeRows();
+            }
+            catch (Exception ex)
+            {
+                this.error = ex;
+            }
+            finally
+            {
+                lock ((this.rowsLock))
+                {
+                    this.isFinished = true;
+                    System.Threading.Monitor.PulseAll(this.rowsLock);
+                }
+            }
+        }
+
+        private bool ReadHeader(FileStream stream)
+        {
+            byte[] signature = new byte[8];
+            byte[] header;
+            string type;
+            int length;
+            bool isHeaderRead = false;
+
+            if (!ReadFully(stream, signature, 8))
+            {
+                return false;
+            }
+            for (int i = 0; i < 8; i++)
+            {
+                if (signature[i] != Signature[i])
+                {
+                    return false;
+                }
+            }
+
+            while (ReadChunkStart(stream, out length, out type))
+            {
+                if (type == "IHDR")
+                {
+                    header = new byte[13];
+                    if (length != 13 || !ReadFully(stream, header, 13))
+                    {
+                        return false;
+                    }
+                    this.width = (int)ReadBigEndian(header, 0);
+                    this.height = (int)ReadBigEndian(header, 4);
+                    this.colourType = header[9];
+
+                    if (
+                        header[8] != 8
+                        || header[10] != 0
+                        || header[11] != 0
+                        // Interlaced images arrive in passes, not rows.
+                        || header[12] != 0
+                        || (this.colourType != BYTE_COLOUR_TYPE_GREY && this.colourType != BYTE_COLOUR_TYPE_RGB && this.colourType != BYTE_COLOUR_TYPE_GREY_ALPHA && this.colourType != BYTE_COLOUR_TYPE_RGBA)
+                        || this.width <= 0
+                        || this.height <= 0
+                        )
+                    {
+                        return false;
+                    }
+                    isHeaderRead = true;
+                    stream.Seek(4, SeekOrigin.Current);
+                }
+                else if (type == "IDAT")
+                {
+                    this.firstDataChunkPosition = stream.Position - 8;
+                    return isHeaderRead;
+                }
+                else if (type == "tRNS")
+                {   // Colour keyed transparency is left to GDI+.
+                    return false;
+                }
+                else
+                {
+                    stream.Seek(length + 4, SeekOrigin.Current);
+                }
+            }
+
+            return false;
+        }
+
+        private void DecodeRows()
+        {
+            int bytesPerPixel;
+            byte[] previous;
+            byte[] current;
+            byte[] swap;
+            byte[] filter = new byte[1];
+            int[] rowPixels = new int[this.width];
+
+            switch (this.colourType)
+            {
+                case BYTE_COLOUR_TYPE_GREY:
+                    bytesPerPixel = 1;
+                    break;
+                case BYTE_COLOUR_TYPE_GREY_ALPHA:
+                    bytesPerPixel = 2;
+                    break;
+                case BYTE_COLOUR_TYPE_RGB:
+                    bytesPerPixel = 3;
+                    break;
+                default:
+                    bytesPerPixel = 4;
+                    break;
+            }
+            previous = new byte[this.width * bytesPerPixel];
+            current = new byte[previous.Length];
+
+            using (FileStream file = new FileStream(this.path, FileMode.Open, FileAccess.Read, FileShare.Read))
+            {
+                ImageDataStream data = new ImageDataStream(file, this.firstDataChunkPosition);
+
+                // Skip the two byte zlib header, DeflateStream wants the raw deflate data.
+                if (data.ReadByte() == -1 || data.ReadByte() == -1)
+                {
+                    throw new InvalidDataException("Missing image data.");
+                }
+
+                using (DeflateStream inflate = new DeflateStream(data, CompressionMode.Decompress))
+                {
+                    for (int y = 0; y < this.height; y++)
+                    {
+                        if (this.isAborted)
+                        {
+                            return;
+                        }
+
+                        if (!ReadFully(inflate, filter, 1) || !ReadFully(inflate, current, current.Length))
+                        {
+                            throw new InvalidDataException("Image data ends early.");
+                        }
+
+                        Unfilter(filter[0], current, previous, bytesPerPixel);
+                        this.StoreRow(current, rowPixels, 0);
+                        this.target.WriteRow(y, rowPixels, 0);
+
+                        swap = previous;
+                        previous = current;
+                        current = swap;
+
+                        if ((y + 1) % INT_BAND_HEIGHT == 0 || y == this.height - 1)
+                        {
+                            lock ((this.rowsLock))
+                            {
+                                this.rowsDecoded = y + 1;
+                                System.Threading.Monitor.PulseAll(this.rowsLock);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private static void Unfilter(byte filter, byte[] current, byte[] previous, int bytesPerPixel)
+        {
+            switch (filter)
+            {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = bytesPerPixel; i < current.Length; i++)
+                    {
+                        current[i] = (byte)(current[i] + current[i - bytesPerPixel]);
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < current.Length; i++)
+                    {
+                        current[i] = (byte)(current[i] + previous[i]);
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < current.Length; i++)
+                    {
+                        int left = i < bytesPerPixel ? 0 : current[i - bytesPerPixel];
+
+                        current[i] = (byte)(current[i] + ((left + previous[i]) >> 1));
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < current.Length; i++)
+                    {
+                        int left = i < bytesPerPixel ? 0 : current[i - bytesPerPixel];
+                        int upperLeft = i < bytesPerPixel ? 0 : previous[i - bytesPerPixel];
+
+                        current[i] = (byte)(current[i] + Paeth(left, previous[i], upperLeft));
+                    }
+                    break;
+                default:
+                    throw new InvalidDataException(String.Format("Unknown row filter {0}.", filter));
+            }
+        }
+
+        private static int Paeth(int left, int above, int upperLeft)
+        {
+            int estimate = left + above - upperLeft;
+            int toLeft = Math.Abs(estimate - left);
+            int toAbove = Math.Abs(estimate - above);
+            int toUpperLeft = Math.Abs(estimate - upperLeft);
+
+            if (toLeft <= toAbove && toLeft <= toUpperLeft)
+            {
+                return left;
+            }
+            if (toAbove <= toUpperLeft)
+            {
+                return above;
+            }
+            return upperLeft;
+        }
+
+        private void StoreRow(byte[] row, int[] pixels, int offset)
+        {
+            int i = 0;
+
+            for (int x = 0; x < this.width; x++)
+            {
+                switch (this.colourType)
+                {
+                    case BYTE_COLOUR_TYPE_GREY:
+                        pixels[offset + x] = unchecked((int)0xFF000000) | (row[i] << 16) | (row[i] << 8) | row[i];
+                        i += 1;
+                        break;
+                    case BYTE_COLOUR_TYPE_GREY_ALPHA:
+                        pixels[offset + x] = (row[i + 1] << 24) | (row[i] << 16) | (row[i] << 8) | row[i];
+                        i += 2;
+                        break;
+                    case BYTE_COLOUR_TYPE_RGB:
+                        pixels[offset + x] = unchecked((int)0xFF000000) | (row[i] << 16) | (row[i + 1] << 8) | row[i + 2];
+                        i += 3;
+                        break;
+                    default:
+                        pixels[offset + x] = (row[i + 3] << 24) | (row[i] << 16) | (row[i + 1] << 8) | row[i + 2];
+                        i += 4;
+                        break;
+                }
+            }
+        }
+
+        private static bool ReadChunkStart(Stream stream, out int length, out string type)
+        {
+            byte[] start = new byte[8];
+
+            length = 0;
+            type = null;
+            if (!ReadFully(stream, start, 8))
+            {
+                return false;
+            }
+            length = (int)ReadBigEndian(start, 0);
+            type = Encoding.ASCII.GetString(start, 4, 4);
+
+            return true;
+        }
+
+        private static bool ReadFully(Stream stream, byte[] buffer, int count)
+        {
+            int read = 0;
+            int lastRead;
+
+            while (read < count)
+            {
+                lastRead = stream.Read(buffer, read, count - read);
+                if (lastRead == 0)
+                {
+                    return false;
+                }
+                read += lastRead;
+            }
+
+            return true;
+        }
+
+        private static uint ReadBigEndian(byte[] bytes, int offset)
+        {
+            return ((uint)bytes[offset] << 24) | ((uint)bytes[offset + 1] << 16) | ((uint)bytes[offset + 2] << 8) | bytes[offset + 3];
+        }
+
+        /// <summary>
+        /// Reads the contents of consecutive IDAT chunks as one stream, skipping over their lengths, types and CRCs.
+        /// </summary>
+        private class ImageDataStream : Stream
+        {
+            private Stream file;
+            private int remainingInChunk = 0;
+            private bool isEnded = false;
+
+            public ImageDataStream(Stream file, long firstChunkPosition)
+            {
+                this.file = file;
+                this.file.Seek(firstChunkPosition, SeekOrigin.Begin);
+                this.NextChunk();
+            }
+
+            public override int Read(byte[] buffer, int offset, int count)
+            {
+                int read;
+
+                while (this.remainingInChunk == 0 && !this.isEnded)
+                {
+                    // Skip the CRC of the chunk just finished.
+                    this.file.Seek(4, SeekOrigin.Current);
+                    this.NextChunk();
+                }
+                if (this.isEnded)
+                {
+                    return 0;
+                }
+
+                read = this.file.Read(buffer, offset, Math.Min(count, this.remainingInChunk));
+                if (read == 0)
+                {
+                    this.isEnded = true;
+                }
+                this.remainingInChunk -= read;
+
+                return read;
+            }
+
+            private void NextChunk()
+            {
+                int length;
+                string type;
+
+                if (!ReadChunkStart(this.file, out length, out type) || type != "IDAT")
+                {
+                    this.isEnded = true;
+                    return;
+                }
+                this.remainingInChunk = length;
+            }
+
+            public override bool CanRead
+            {
+                get { return true; }
+            }
+
+            public override bool CanSeek
+            {
+                get { return false; }
+            }
+
+            public override bool CanWrite
+            {
+                get { return false; }
+            }
+
+            public override long Length
+            {
+                get { throw new NotSupportedException(); }
+            }
+
+            public override long Position
+            {
+                get { throw new NotSupportedException(); }
+                set { throw new NotSupportedException(); }
+            }
+
+            public override void Flush()
+            {
+            }
+
+            public override long Seek(long offset, SeekOrigin origin)
+            {
+                throw new NotSupportedException();
+            }
+
+            public override void SetLength(long value)
+            {
+                throw new NotSupportedException();
+            }
+
+            public override void Write(byte[] buffer, int offset, int count)
+            {
+                throw new NotSupportedException();
+            }
+        }
+    }
+}
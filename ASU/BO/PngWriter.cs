@@ -0,0 +1,310 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.IO;
+using System.IO.Compression;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Managed PNG encoder for PixelBuffers, so frames can be saved without going through GDI+.
+    /// Writes 8 bit indexed, RGB or RGBA, whichever is the smallest that loses nothing.
+    /// </summary>
+    public class PngWriter
+    {
+        private const byte BYTE_COLOUR_TYPE_RGB = 2;
+        private const byte BYTE_COLOUR_TYPE_INDEXED = 3;
+        private const byte BYTE_COLOUR_TYPE_RGBA = 6;
+        private const byte BYTE_FILTER_NONE = 0;
+        private const byte BYTE_FILTER_SUB = 1;
+
+        private static readonly byte[] Signature = new byte[] { 137, 80, 78, 71, 13, 10, 26, 10 };
+        private static uint[] crcTable;
+
+        static PngWriter()
+        {
+            crcTable = new uint[256];
+            for (uint n = 0; n < 256; n++)
+            {
+                uint c = n;
+
+                for (int k = 0; k < 8; k++)
+                {
+                    c = (c & 1) != 0 ? 0xEDB88320u ^ (c >> 1) : c >> 1;
+                }
+                crcTable[n] = c;
+            }
+        }
+
+        public static void Save(PixelBuffer image, string path)
+        {
+            Save(image, null, path);
+        }
+
+        public static void Save(PixelBuffer image, Color[] palette, string path)
+        {
+            using (FileStream stream = new FileStream(path, FileMode.Create, FileAccess.Write, FileShare.None))
+            {
+                Save(image, palette, stream);
+            }
+        }
+
+        /// <summary>
+        /// If a palette is given and every pixel is in it, the image is written indexed against that palette.
+        /// Otherwise it falls back to RGB, or RGBA when anything is not fully opaque.
+        /// </summary>
+        public static void Save(PixelBuffer image, Color[] palette, Stream stream)
+        {
+            byte[] indexes = null;
+            byte colourType;
+
+            if (palette != null && palette.Length > 0 && palette.Length <= 256)
+            {
+                indexes = GetIndexes(image, palette);
+            }
+
+            if (indexes != null)
+            {
+                colourType = BYTE_COLOUR_TYPE_INDEXED;
+            }
+            else if (image.IsOpaque())
+            {
+                colourType = BYTE_COLOUR_TYPE_RGB;
+            }
+            else
+            {
+                colourType = BYTE_COLOUR_TYPE_RGBA;
+            }
+
+            stream.Write(Signature, 0, Signature.Length);
+            WriteHeader(stream, image, colourType);
+            if (indexes != null)
+            {
+                WritePalette(stream, palette);
+            }
+            WriteImageData(stream, image, colourType, indexes);
+            WriteChunk(stream, "IEND", new byte[0]);
+        }
+
+        private static byte[] GetIndexes(PixelBuffer image, Color[] palette)
+        {
+            Dictionary<int, byte> indexByArgb = new Dictionary<int, byte>();
+            int[] pixels = image.Pixels;
+            byte[] indexes = new byte[pixels.Length];
+            byte index;
+
+            for (int i = 0; i < palette.Length; i++)
+            {
+                if (!indexByArgb.ContainsKey(palette[i].ToArgb()))
+                {
+                    indexByArgb.Add(palette[i].ToArgb(), (byte)i);
+                }
+            }
+
+            for (int i = 0; i < pixels.Length; i++)
+            {
+                if (!indexByArgb.TryGetValue(pixels[i], out index))
+                {
+                    return null;
+                }
+                indexes[i] = index;
+            }
+
+            return indexes;
+        }
+
+        private static void WriteHeader(Stream stream, PixelBuffer image, byte colourType)
+        {
+            byte[] header = new byte[13];
+
+            WriteBigEndian(header, 0, (uint)image.Width);
+            WriteBigEndian(header, 4, (uint)image.Height);
+            header[8] = 8;
+            header[9] = colourType;
+            // Compression, filter and interlace methods are all the default.
+            header[10] = 0;
+            header[11] = 0;
+            header[12] = 0;
+
+            WriteChunk(stream, "IHDR", header);
+        }
+
+        private static void WritePalette(Stream stream, Color[] palette)
+        {
+            byte[] entries = new byte[palette.Length * 3];
+            int transparentCount = 0;
+
+            for (int i = 0; i < palette.Length; i++)
+            {
+                entries[(i * 3)] = palette[i].R;
+                entries[(i * 3) + 1] = palette[i].G;
+                entries[(i * 3) + 2] = palette[i].B;
+                if (palette[i].A != 255)
+                {
+                    transparentCount = i + 1;
+                }
+            }
+            WriteChunk(stream, "PLTE", entries);
+
+            if (transparentCount > 0)
+            {   // Entries past the last transparent one default to opaque, so they can be left off.
+                byte[] alphas = new byte[transparentCount];
+
+                for (int i = 0; i < transparentCount; i++)
+                {
+                    alphas[i] = palette[i].A;
+                }
+                WriteChunk(stream, "tRNS", alphas);
+            }
+        }
+
+        private static void WriteImageData(Stream stream, PixelBuffer image, byte colourType, byte[] indexes)
+        {
+            int bytesPerPixel;
+            byte[] row;
+            byte[] filtered;
+            uint adler = 1;
+
+            switch (colourType)
+            {
+                case BYTE_COLOUR_TYPE_INDEXED:
+                    bytesPerPixel = 1;
+                    break;
+                case BYTE_COLOUR_TYPE_RGB:
+                    bytesPerPixel = 3;
+                    break;
+                default:
+                    bytesPerPixel = 4;
+                    break;
+            }
+            row = new byte[image.Width * bytesPerPixel];
+            filtered = new byte[row.Length + 1];
+
+            using (MemoryStream compressed = new MemoryStream())
+            {
+                // zlib header for deflate with the default window size.
+                compressed.WriteByte(0x78);
+                compressed.WriteByte(0x9C);
+
+                using (DeflateStream deflate = new DeflateStream(compressed, CompressionMode.Compress, true))
+                {
+                    for (int y = 0; y < image.Height; y++)
+                    {
+                        if (indexes != null)
+                        {
+                            Array.Copy(indexes, y * image.Width, row, 0, image.Width);
+                            // Filtering does not help with indexed images.
+                            filtered[0] = BYTE_FILTER_NONE;
+                            Array.Copy(row, 0, filtered, 1, row.Length);
+                        }
+                        else
+                        {
+                            FillRow(image, y, bytesPerPixel, row);
+                            filtered[0] = BYTE_FILTER_SUB;
+                            for (int i = 0; i < row.Length; i++)
+                            {
+                                filtered[i + 1] = i < bytesPerPixel ? row[i] : (byte)(row[i] - row[i - bytesPerPixel]);
+                            }
+                        }
+
+                        adler = UpdateAdler32(adler, filtered);
+                        deflate.Write(filtered, 0, filtered.Length);
+                    }
+                }
+
+                compressed.WriteByte((byte)(adler >> 24));
+                compressed.WriteByte((byte)(adler >> 16));
+                compressed.WriteByte((byte)(adler >> 8));
+                compressed.WriteByte((byte)adler);
+
+                WriteChunk(stream, "IDAT", compressed.ToArray());
+            }
+        }
+
+        private static void FillRow(PixelBuffer image, int y, int bytesPerPixel, byte[] row)
+        {
+            int[] pixels = image.Pixels;
+            int offset = y * image.Width;
+            int argb;
+
+            for (int x = 0; x < image.Width; x++)
+            {
+                argb = pixels[offset + x];
+                row[(x * bytesPerPixel)] = (byte)(argb >> 16);
+                row[(x * bytesPerPixel) + 1] = (byte)(argb >> 8);
+                row[(x * bytesPerPixel) + 2] = (byte)argb;
+                if (bytesPerPixel == 4)
+                {
+                    row[(x * bytesPerPixel) + 3] = (byte)(argb >> 24);
+                }
+            }
+        }
+
+        private static uint UpdateAdler32(uint adler, byte[] bytes)
+        {
+            uint a = adler & 0xFFFF;
+            uint b = adler >> 16;
+            int index = 0;
+
+            while (index < bytes.Length)
+            {
+                // 5552 is the most bytes which can be summed before the totals could overflow.
+                int end = Math.Min(index + 5552, bytes.Length);
+
+                for (; index < end; index++)
+                {
+                    a += bytes[index];
+                    b += a;
+                }
+                a %= 65521;
+                b %= 65521;
+            }
+
+            return (b << 16) | a;
+        }
+
+        private static void WriteChunk(Stream stream, string type, byte[] data)
+        {
+            byte[] typeBytes = Encoding.ASCII.GetBytes(type);
+            byte[] number = new byte[4];
+            uint crc = 0xFFFFFFFF;
+
+            WriteBigEndian(number, 0, (uint)data.Length);
+            stream.Write(number, 0, 4);
+            stream.Write(typeBytes, 0, 4);
+            stream.Write(data, 0, data.Length);
+
+            crc = UpdateCrc(crc, typeBytes);
+            crc = UpdateCrc(crc, data);
+            WriteBigEndian(number, 0, crc ^ 0xFFFFFFFF);
+            stream.Write(number, 0, 4);
+        }
+
+        private static uint UpdateCrc(uint crc, byte[] bytes)
+        {
+            return UpdateCrc(crc, bytes, 0, bytes.Length);
+        }
+
+        /// <summary>
+        /// The CRC-32 PNG chunks use, which is the same one ZIP uses. Start from 0xFFFFFFFF and invert the end result.
+        /// </summary>
+        internal static uint UpdateCrc(uint crc, byte[] bytes, int offset, int length)
+        {
+            for (int i = offset; i < offset + length; i++)
+            {
+                crc = crcTable[(crc ^ bytes[i]) & 0xFF] ^ (crc >> 8);
+            }
+
+            return crc;
+        }
+
+        private static void WriteBigEndian(byte[] bytes, int offset, uint value)
+        {
+            bytes[offset] = (byte)(value >> 24);
+            bytes[offset + 1] = (byte)(value >> 16);
+            bytes[offset + 2] = (byte)(value >> 8);
+            bytes[offset + 3] = (byte)value;
+        }
+    }
+}
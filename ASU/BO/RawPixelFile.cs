@@ -0,0 +1,157 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.Drawing.Imaging;
+using System.IO;
+using System.Runtime.InteropServices;
+using System.Threading;
+using Microsoft.Win32.SafeHandles;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Keeps decoded pixels in a temporary file instead of on the managed heap, for sheets too big to comfortably hold there.
+    /// Rows are read back through the OS file cache as needed. The file is deleted once it is closed. Every read and write
+    /// says where in the file it is for, rather than seeking first, so any number of threads can use it at once.
+    /// </summary>
+    public class RawPixelFile : IPixelStore, IDisposable
+    {
+        private int width;
+        private int height;
+        private FileStream file;
+
+        [DllImport("kernel32.dll", SetLastError = true)]
+        private static extern bool ReadFile(SafeFileHandle file, IntPtr buffer, int count, out int read, ref NativeOverlapped overlapped);
+
+        [DllImport("kernel32.dll", SetLastError = true)]
+        private static extern bool WriteFile(SafeFileHandle file, IntPtr buffer, int count, out int written, ref NativeOverlapped overlapped);
+
+        public RawPixelFile(int width, int height, string directory)
+        {
+            this.width = width;
+            this.height = height;
+            this.file = new FileStream(
+                                        Path.Combine(directory, String.Format("asu_raw_pixels_{0}.tmp", Guid.NewGuid().ToString().Replace("-", "")))
+                                        , FileMode.CreateNew
+                                        , FileAccess.ReadWrite
+                                        , FileShare.None
+                                        , 4096
+                                        , FileOptions.DeleteOnClose
+                                        );
+            this.file.SetLength((long)width * height * 4);
+        }
+
+        public int Width
+        {
+            get { return this.width; }
+        }
+
+        public int Height
+        {
+            get { return this.height; }
+        }
+
+        public void WriteRow(int y, int[] pixels, int offset)
+        {
+            this.Transfer(true, (long)y * this.width, pixels, offset, this.width);
+        }
+
+        public void ReadRow(int y, int[] pixels, int offset)
+        {
+            this.ReadRowPart(y, 0, this.width, pixels, offset);
+        }
+
+        public PixelBuffer Crop(Rectangle area)
+        {
+            PixelBuffer cropped = new PixelBuffer(area.Width, area.Height);
+            Rectangle inside = Rectangle.Intersect(area, new Rectangle(0, 0, this.width, this.height));
+
+            for (int y = inside.Top; y < inside.Bottom; y++)
+            {
+                this.ReadRowPart(y, inside.Left, inside.Width, cropped.Pixels, ((y - area.Top) * area.Width) + (inside.Left - area.Left));
+            }
+
+            return cropped;
+        }
+
+        public Bitmap ToBitmap()
+        {
+            Bitmap image = new Bitmap(this.width, this.height, PixelFormat.Format32bppArgb);
+            BitmapData data;
+            int[] row = new int[this.width];
+
+            data = image.LockBits(new Rectangle(0, 0, this.width, this.height), ImageLockMode.WriteOnly, PixelFormat.Format32bppArgb);
+            try
+            {
+                for (int y = 0; y < this.height; y++)
+                {
+                    this.ReadRow(y, row, 0);
+                    System.Runtime.InteropServices.Marshal.Copy(row, 0, new IntPtr(data.Scan0.ToInt64() + ((long)y * data.Stride)), this.width);
+                }
+            }
+            finally
+            {
+                image.UnlockBits(data);
+            }
+
+            return image;
+        }
+
+        public void Dispose()
+        {
+            this.file.Dispose();
+        }
+
+        private void ReadRowPart(int y, int x, int count, int[] pixels, int offset)
+        {
+            this.Transfer(false, ((long)y * this.width) + x, pixels, offset, count);
+        }
+
+        /// <summary>
+        /// Reads or writes count pixels straight between the file, starting at pixel index, and the array. The stream's
+        /// own buffer is never used, so nothing written can be left sitting where a read will not see it.
+        /// </summary>
+        private void Transfer(bool isWrite, long index, int[] pixels, int offset, int count)
+        {
+            GCHandle pinned = GCHandle.Alloc(pixels, GCHandleType.Pinned);
+            int done = 0;
+            int lastDone;
+            bool isOk;
+
+            try
+            {
+                while (done < count * 4)
+                {
+                    NativeOverlapped position = new NativeOverlapped();
+                    long at = (index * 4) + done;
+                    IntPtr buffer = new IntPtr(Marshal.UnsafeAddrOfPinnedArrayElement(pixels, offset).ToInt64() + done);
+
+                    position.OffsetLow = (int)(at & 0xFFFFFFFF);
+                    position.OffsetHigh = (int)(at >> 32);
+                    if (isWrite)
+                    {
+                        isOk = WriteFile(this.file.SafeFileHandle, buffer, (count * 4) - done, out lastDone, ref position);
+                    }
+                    else
+                    {
+                        isOk = ReadFile(this.file.SafeFileHandle, buffer, (count * 4) - done, out lastDone, ref position);
+                    }
+                    if (!isOk)
+                    {
+                        throw new IOException("Unable to access the raw pixel file.", Marshal.GetHRForLastWin32Error());
+                    }
+                    if (lastDone == 0)
+                    {
+                        throw new EndOfStreamException();
+                    }
+                    done += lastDone;
+                }
+            }
+            finally
+            {
+                pinned.Free();
+            }
+        }
+    }
+}
@@ -9,22 +9,25 @@ namespace ASU.BO
     {
         public static object Wait = new object();
         public static int Counter;
-        private Color BackgroundColour;
-        private Bitmap Image;
         private Rectangle Region;
+        private ForegroundIndex Foreground;
+        private CancellationFlag Cancellation;
 
         public List<Rectangle> Boxes = new List<Rectangle>();
-        public RegionUnpacker(Bitmap image, Rectangle region, Color backgroundColour)
+        public List<Rectangle> Fragments = new List<Rectangle>();
+        public RegionUnpacker(Rectangle region, ForegroundIndex foreground, CancellationFlag cancellation)
         {
-            this.Image = image;
             this.Region = region;
-            this.BackgroundColour = backgroundColour;
+            this.Foreground = foreground;
+            this.Cancellation = cancellation;
         }
 
         public void UnpackRegion()
         {
-            this.Boxes = CreateBoxes(this.Image, this.Region, this.BackgroundColour);
-            CombineBoxes(ref this.Boxes, this.BackgroundColour, this.Image);
+            this.Boxes = CreateBoxes(this.Foreground.Mask, this.Foreground.Runs, this.Region, this.Cancellation);
+            // The unmerged boxes do not depend on DistanceBetweenTiles, so are kept to allow a re-merge without a re-scan.
+            this.Fragments = new List<Rectangle>(this.Boxes);
+            CombineBoxes(ref this.Boxes, this.Foreground, this.Cancellation);
             lock ((Wait))
             {
                 Counter += 1;
@@ -32,99 +35,112 @@ namespace ASU.BO
             }
         }
 
-        public Bitmap GetImage()
-        {
-            return this.Image;
-        }
-
-        private static List<Rectangle> CreateBoxes(Bitmap image, Rectangle region, Color background)
+        private static List<Rectangle> CreateBoxes(ForegroundMask mask, ForegroundRuns runs, Rectangle region, CancellationFlag cancellation)
         {
             List<Rectangle> boxes = new List<Rectangle>();
             Point presentPixel;
             Rectangle newBox;
             int x2 = 0;
             int y2 = 0;
-            Color presentColour;
 
             for (int y = region.Top; y <= region.Bottom; y++)
             {
-
-                for (int x = region.Left; x <= region.Right; x++)
+                if (cancellation.IsCancelled)
                 {
-                    if (x > 0 && x < image.Width && y > 0 && y < image.Height)
-                    {
-                        presentPixel = new Point(x, y);
+                    return boxes;
+                }
 
-                        presentColour = image.GetPixel(x, y);
+                if (y <= 0 || y >= mask.Height)
+                {
+                    continue;
+                }
 
-                        if (presentColour.ToArgb() != background.ToArgb())
-                        {
-                            newBox = new Rectangle(presentPixel, new Size(0, 0));
-                            x2 = x;
+                for (int x = Math.Max(region.Left, 1); x <= region.Right; x++)
+                {
+                    // Skip straight over any background to the next run of foreground on this row.
+                    x = runs.GetNextForeground(y, x);
+                    if (x == -1 || x > region.Right)
+                    {
+                        break;
+                    }
 
-                            while (x2 < (image.Width - 1) && image.GetPixel(x2, y).ToArgb() != background.ToArgb())
-                            {
-                                x2 += 1;
-                                newBox = new Rectangle(newBox.X, newBox.Y, newBox.Width + 1, newBox.Height);
-                            }
+                    presentPixel = new Point(x, y);
+                    newBox = new Rectangle(presentPixel, new Size(0, 0));
+                    x2 = Math.Min(runs.GetRunEnd(y, x), mask.Width - 1);
+                    newBox.Width = x2 - x;
 
-                            y2 = y;
-                            while (y2 < (image.Height - 1) && image.GetPixel(x2, y2).ToArgb() != background.ToArgb())
-                            {
-                                y2 += 1;
-                                newBox = new Rectangle(newBox.X, newBox.Y, newBox.Width, newBox.Height + 1);
-                            }
+                    y2 = y;
+                    while (y2 < (mask.Height - 1) && mask.IsForeground(x2, y2))
+                    {
+                        y2 += 1;
+                        newBox = new Rectangle(newBox.X, newBox.Y, newBox.Width, newBox.Height + 1);
+                    }
 
-                            y2 = y + newBox.Height;
-                            while (y2 < (image.Height - 1) && image.GetPixel(x, y2).ToArgb() != background.ToArgb())
-                            {
-                                y2 += 1;
-                                newBox = new Rectangle(newBox.X, newBox.Y, newBox.Width, newBox.Height + 1);
-                            }
+                    y2 = y + newBox.Height;
+                    while (y2 < (mask.Height - 1) && mask.IsForeground(x, y2))
+                    {
+                        y2 += 1;
+                        newBox = new Rectangle(newBox.X, newBox.Y, newBox.Width, newBox.Height + 1);
+                    }
 
-                            boxes.Add(newBox);
+                    boxes.Add(newBox);
 
-                            x += (newBox.Width + 1);
-                        }
-                    }
+                    x += (newBox.Width + 1);
                 }
             }
 
             return boxes;
         }
 
-        public static void CombineBoxes(ref List<Rectangle> boxes, Color background, Bitmap image)
+        public static void CombineBoxes(ref List<Rectangle> boxes, ForegroundIndex foreground, CancellationFlag cancellation)
+        {
+            CombineBoxes(ref boxes, new BoxGrid(boxes), foreground, cancellation);
+        }
+
+        /// <summary>
+        /// The grid must hold the same boxes as the list, and is kept in step with it as boxes are combined.
+        /// </summary>
+        public static void CombineBoxes(ref List<Rectangle> boxes, BoxGrid grid, ForegroundIndex foreground, CancellationFlag cancellation)
         {
             int index = 0;
             do
             {
-                index = CombineFirstOverlappingBox(ref boxes, background, image, index);
+                index = CombineFirstOverlappingBox(ref boxes, grid, foreground, index, cancellation);
                 // There is a bug here where -1 is returned even when boxes still need to be combined so just a hack to try again even if 
                 // index is -1. Keep trying.
                 if(index == -1)
                 {
                     index = 0;
-                    index = CombineFirstOverlappingBox(ref boxes, background, image, index);
+                    index = CombineFirstOverlappingBox(ref boxes, grid, foreground, index, cancellation);
                 }
-            } while (index != -1);
+            } while (index != -1 && !cancellation.IsCancelled);
         }
 
-        private static int CombineFirstOverlappingBox(ref List<Rectangle> boxes, Color background, Bitmap image, int startIndex)
+        private static int CombineFirstOverlappingBox(ref List<Rectangle> boxes, BoxGrid grid, ForegroundIndex foreground, int startIndex, CancellationFlag cancellation)
         {
             Rectangle newBox = Rectangle.Empty;
             List<Rectangle> oldBoxes = new List<Rectangle>();
             int returnIndex = -1;
             Rectangle box;
+            Rectangle reach;
             
             for (int i = startIndex; i <= boxes.Count - 1; i++)
             {
+                if (cancellation.IsCancelled)
+                {
+                    return -1;
+                }
+
                 box = boxes[i];
+                reach = box;
+                // Boxes further away than this can never pass DoBoxesContainAdjacentOrOverlappingPixels.
+                reach.Inflate(UI.MainForm.DistanceBetweenTiles + 1, UI.MainForm.DistanceBetweenTiles + 1);
 
-                foreach (Rectangle collider in boxes)
+                foreach (Rectangle collider in grid.GetBoxesNear(reach))
                 {
                     if (box != collider)
                     {
-                        if (DoBoxesContainAdjacentOrOverlappingPixels(box, collider, background, image))
+                        if (DoBoxesContainAdjacentOrOverlappingPixels(box, collider, foreground))
                         {
                             newBox = box;
 
@@ -170,106 +186,75 @@ namespace ASU.BO
                 foreach (Rectangle oldBox in oldBoxes)
                 {
                     boxes.Remove(oldBox);
+                    grid.Remove(oldBox);
                 }
                 boxes.Add(newBox);
+                grid.Add(newBox);
             }
 
             return returnIndex;
         }
 
-        public static void DeleteAllTempFiles()
-        {
-            try
-            {
-                Console.WriteLine("Deleting from " + Environment.GetFolderPath(Environment.SpecialFolder.ApplicationData));
-                foreach (string file in System.IO.Directory.GetFiles(Environment.GetFolderPath(Environment.SpecialFolder.ApplicationData), "asu_temp_spritesheet*", System.IO.SearchOption.TopDirectoryOnly))
-                {
-                    Console.WriteLine("Deleting " + file);
-                    System.IO.File.Delete(file);
-                }
-            }
-            catch (Exception ignore)
-            {
-                Console.WriteLine(ignore.ToString());
-            }
-        }
-
-        private static bool DoBoxesContainAdjacentOrOverlappingPixels(Rectangle box1, Rectangle box2, Color background, Bitmap image)
+        private static bool DoBoxesContainAdjacentOrOverlappingPixels(Rectangle box1, Rectangle box2, ForegroundIndex foreground)
         {
             Rectangle intersection;
+            int distance = UI.MainForm.DistanceBetweenTiles;
 
             if (box1.IntersectsWith(box2))
             {
                 intersection = Rectangle.Intersect(box1, box2);
-                for (int x = intersection.X; x <= intersection.Right; x++)
+                if (foreground.ContainsForeground(intersection.X, intersection.Y, intersection.Right, intersection.Bottom))
                 {
-                    for (int y = intersection.Y; y <= intersection.Bottom; y++)
-                    {                       
-                        if (image.GetPixel(x, y).ToArgb() != background.ToArgb())
-                        {
-                            return true;
-                        }
-                    }
+                    return true;
                 }
-
             }
 
-            if (ForkandBeard.Util.Geometry.GeometryHelper.GetXGapBetweenRectangles(box1, box2) <= UI.MainForm.DistanceBetweenTiles)
+            if (ForkandBeard.Util.Geometry.GeometryHelper.GetXGapBetweenRectangles(box1, box2) <= distance)
             {
-                for (int y = box1.Y - UI.MainForm.DistanceBetweenTiles; y <= box1.Bottom + UI.MainForm.DistanceBetweenTiles; y++)
+                int top = Math.Max(box1.Y - distance, box2.Top);
+                int bottom = Math.Min(box1.Bottom + distance, box2.Bottom);
+                int x1 = box1.Left;
+                int x2 = box2.Right;
+
+                if (box2.Left > box1.Right)
+                {
+                    x1 = box1.Right;
+                    x2 = box2.Left;
+                }
+
+                // Only walk the facing edges when both actually have something on them.
+                if (foreground.ContainsForeground(x1, top, x1, bottom) && foreground.ContainsForeground(x2, top, x2, bottom))
                 {
-                    if (y >= box2.Top && y <= box2.Bottom)
+                    for (int y = top; y <= bottom; y++)
                     {
-                        if (box2.Left > box1.Right)
-                        {
-                            if (image.GetPixel(box1.Right, y).ToArgb() != background.ToArgb())
-                            {
-                                if (image.GetPixel(box2.Left, y).ToArgb() != background.ToArgb())
-                                {
-                                    return true;
-                                }
-                            }
-                        }
-                        else
+                        if (foreground.IsForeground(x1, y) && foreground.IsForeground(x2, y))
                         {
-                            if (image.GetPixel(box1.Left, y).ToArgb() != background.ToArgb())
-                            {
-                                if (image.GetPixel(box2.Right, y).ToArgb() != background.ToArgb())
-                                {
-                                    return true;
-                                }
-                            }
+                            return true;
                         }
-
                     }
                 }
             }
 
-            if (ForkandBeard.Util.Geometry.GeometryHelper.GetYGapBetweenRectangles(box1, box2) <= UI.MainForm.DistanceBetweenTiles)
+            if (ForkandBeard.Util.Geometry.GeometryHelper.GetYGapBetweenRectangles(box1, box2) <= distance)
             {
-                for (int x = box1.Left - UI.MainForm.DistanceBetweenTiles; x <= box1.Right + UI.MainForm.DistanceBetweenTiles; x++)
+                int left = Math.Max(box1.Left - distance, box2.Left);
+                int right = Math.Min(box1.Right + distance, box2.Right);
+                int y1 = box1.Top;
+                int y2 = box2.Bottom;
+
+                if (box2.Top > box1.Bottom)
                 {
-                    if (x >= box2.Left && x <= box2.Right)
+                    y1 = box1.Bottom;
+                    y2 = box2.Top;
+                }
+
+                if (foreground.ContainsForeground(left, y1, right, y1) && foreground.ContainsForeground(left, y2, right, y2))
+                {
+                    for (int x = left; x <= right; x++)
                     {
-                        if (box2.Top > box1.Bottom)
+                        if (foreground.IsForeground(x, y1) && foreground.IsForeground(x, y2))
                         {
-                            if (image.GetPixel(x, box1.Bottom).ToArgb() != background.ToArgb())
-                            {
-                                if (image.GetPixel(x, box2.Top).ToArgb() != background.ToArgb())
-                                {
-                                    return true;
-                                }
-                            }
-                        }
-                        else
-                        {
-                            if (image.GetPixel(x, box1.Top).ToArgb() != background.ToArgb())
-                            {
-                                if (image.GetPixel(x, box2.Bottom).ToArgb() != background.ToArgb())
-                                {
-                                    return true;
-                                }
-                            }
+                            return true;
                         }
                     }
                 }
@@ -290,10 +275,6 @@ namespace ASU.BO
                 if (disposing)
                 {
                     // TODO: dispose managed state (managed objects).
-                    if (this.Image != null)
-                    {
-                        //Me.Image.Dispose()
-                    }
                 }
 
                 // TODO: free unmanaged resources (unmanaged objects) and override Finalize() below.
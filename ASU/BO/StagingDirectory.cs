@@ -0,0 +1,52 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.IO;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// A uniquely named folder for the intermediate files of one conversion, deleted along with everything in it when
+    /// disposed. Keeps each conversion's files apart from any other running at the same time.
+    /// </summary>
+    public class StagingDirectory : IDisposable
+    {
+        private const string STR_PREFIX = "asu_staging_";
+        private string path;
+
+        public StagingDirectory(string parent)
+        {
+            this.path = System.IO.Path.Combine(parent, STR_PREFIX + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(this.path);
+        }
+
+        public string Path
+        {
+            get { return this.path; }
+        }
+
+        public string GetFilePath(string fileName)
+        {
+            return System.IO.Path.Combine(this.path, fileName);
+        }
+
+        public void Dispose()
+        {
+            try
+            {
+                if (Directory.Exists(this.path))
+                {
+                    Directory.Delete(this.path, true);
+                }
+            }
+            catch (IOException ignore)
+            {   // Most likely a converter still has hold of a file, it is only temp space so leave it.
+                Console.WriteLine(ignore.ToString());
+            }
+            catch (UnauthorizedAccessException ignore)
+            {
+                Console.WriteLine(ignore.ToString());
+            }
+        }
+    }
+}
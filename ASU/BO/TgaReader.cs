@@ -0,0 +1,252 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.IO;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// Managed Truevision TGA decoder, so TGA sheets do not have to go out to the third party converter.
+    /// Handles colour mapped, true colour and greyscale images at 8, 15, 16, 24 and 32 bits, raw or run length encoded.
+    /// </summary>
+    public class TgaReader
+    {
+        private const int INT_HEADER_LENGTH = 18;
+        private const byte BYTE_TYPE_COLOUR_MAPPED = 1;
+        private const byte BYTE_TYPE_TRUE_COLOUR = 2;
+        private const byte BYTE_TYPE_GREY = 3;
+        // Added to the types above when the pixels are run length encoded.
+        private const byte BYTE_TYPE_RLE = 8;
+
+        /// <summary>
+        /// True if the header is one Read can decode. There is no signature, so this is all there is to go by.
+        /// </summary>
+        public static bool IsSupported(byte[] header, int length)
+        {
+            byte colourMapType;
+            byte imageType;
+            int colourMapDepth;
+            int pixelDepth;
+
+            if (length < INT_HEADER_LENGTH)
+            {
+                return false;
+            }
+            colourMapType = header[1];
+            imageType = (byte)(header[2] & ~BYTE_TYPE_RLE);
+            colourMapDepth = header[7];
+            pixelDepth = header[16];
+
+            switch (imageType)
+            {
+                case BYTE_TYPE_COLOUR_MAPPED:
+                    return colourMapType == 1 && pixelDepth == 8 && IsColourDepth(colourMapDepth);
+                case BYTE_TYPE_TRUE_COLOUR:
+                    return colourMapType <= 1 && IsColourDepth(pixelDepth);
+                case BYTE_TYPE_GREY:
+                    return colourMapType <= 1 && pixelDepth == 8;
+                default:
+                    return false;
+            }
+        }
+
+        /// <summary>
+        /// True when the pixels carry alpha, going by the attribute bits in the image descriptor.
+        /// </summary>
+        public static bool HasAlpha(byte[] header)
+        {
+            int attributeBits = header[17] & 0x0F;
+
+            return attributeBits > 0 && (header[16] == 16 || header[16] == 32 || (header[1] == 1 && (header[7] == 16 || header[7] == 32)));
+        }
+
+        private static bool IsColourDepth(int depth)
+        {
+            return depth == 15 || depth == 16 || depth == 24 || depth == 32;
+        }
+
+        public static PixelBuffer Read(string path)
+        {
+            byte[] bytes = File.ReadAllBytes(path);
+            int width;
+            int height;
+            int pixelDepth;
+            byte imageType;
+            bool isRle;
+            bool hasAlpha;
+            bool isTopDown;
+            bool isRightToLeft;
+            int[] colourMap = null;
+            int index;
+            int[] decoded;
+            PixelBuffer image;
+
+            if (!IsSupported(bytes, bytes.Length))
+            {
+                throw new InvalidDataException(String.Format("'{0}' is not a supported TGA.", path));
+            }
+
+            width = bytes[12] | (bytes[13] << 8);
+            height = bytes[14] | (bytes[15] << 8);
+            pixelDepth = bytes[16];
+            imageType = (byte)(bytes[2] & ~BYTE_TYPE_RLE);
+            isRle = (bytes[2] & BYTE_TYPE_RLE) != 0;
+            hasAlpha = HasAlpha(bytes);
+            isRightToLeft = (bytes[17] & 0x10) != 0;
+            isTopDown = (bytes[17] & 0x20) != 0;
+
+            // The image ID comes straight after the header.
+            index = INT_HEADER_LENGTH + bytes[0];
+            if (bytes[1] == 1)
+            {
+                int firstEntry = bytes[3] | (bytes[4] << 8);
+                int entries = bytes[5] | (bytes[6] << 8);
+                int entryBytes = (bytes[7] + 7) / 8;
+
+                if (index + (entries * entryBytes) > bytes.Length)
+                {
+                    throw new InvalidDataException("TGA colour map is truncated.");
+                }
+                colourMap = new int[firstEntry + entries];
+                for (int i = 0; i < entries; i++)
+                {
+                    colourMap[firstEntry + i] = ReadColour(bytes, index + (i * entryBytes), bytes[7], hasAlpha);
+                }
+                index += entries * entryBytes;
+            }
+
+            decoded = new int[width * height];
+            if (isRle)
+            {
+                ReadRlePixels(bytes, index, pixelDepth, imageType, colourMap, hasAlpha, decoded);
+            }
+            else
+            {
+                ReadRawPixels(bytes, index, pixelDepth, imageType, colourMap, hasAlpha, decoded);
+            }
+
+            // Pixels are stored bottom up and left to right unless the descriptor says otherwise.
+            image = new PixelBuffer(width, height);
+            for (int y = 0; y < height; y++)
+            {
+                int sourceRow = isTopDown ? y : height - 1 - y;
+
+                if (isRightToLeft)
+                {
+                    Array.Reverse(decoded, sourceRow * width, width);
+                }
+                image.WriteRow(y, decoded, sourceRow * width);
+            }
+
+            return image;
+        }
+
+        private static void ReadRawPixels(byte[] bytes, int index, int pixelDepth, byte imageType, int[] colourMap, bool hasAlpha, int[] decoded)
+        {
+            int pixelBytes = (pixelDepth + 7) / 8;
+
+            if (index + (decoded.Length * pixelBytes) > bytes.Length)
+            {
+                throw new InvalidDataException("TGA pixel data is truncated.");
+            }
+
+            for (int i = 0; i < decoded.Length; i++)
+            {
+                decoded[i] = ReadPixel(bytes, index, pixelDepth, imageType, colourMap, hasAlpha);
+                index += pixelBytes;
+            }
+        }
+
+        private static void ReadRlePixels(byte[] bytes, int index, int pixelDepth, byte imageType, int[] colourMap, bool hasAlpha, int[] decoded)
+        {
+            int pixelBytes = (pixelDepth + 7) / 8;
+            int position = 0;
+
+            while (position < decoded.Length)
+            {
+                int packet;
+                int count;
+
+                if (index >= bytes.Length)
+                {
+                    throw new InvalidDataException("TGA pixel data is truncated.");
+                }
+                packet = bytes[index++];
+                count = Math.Min((packet & 0x7F) + 1, decoded.Length - position);
+
+                if (index + (((packet & 0x80) != 0 ? 1 : count) * pixelBytes) > bytes.Length)
+                {
+                    throw new InvalidDataException("TGA pixel data is truncated.");
+                }
+
+                if ((packet & 0x80) != 0)
+                {   // One pixel repeated.
+                    int argb = ReadPixel(bytes, index, pixelDepth, imageType, colourMap, hasAlpha);
+
+                    index += pixelBytes;
+                    for (int i = 0; i < count; i++)
+                    {
+                        decoded[position++] = argb;
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        decoded[position++] = ReadPixel(bytes, index, pixelDepth, imageType, colourMap, hasAlpha);
+                        index += pixelBytes;
+                    }
+                }
+            }
+        }
+
+        private static int ReadPixel(byte[] bytes, int index, int pixelDepth, byte imageType, int[] colourMap, bool hasAlpha)
+        {
+            switch (imageType)
+            {
+                case BYTE_TYPE_COLOUR_MAPPED:
+                    if (bytes[index] >= colourMap.Length)
+                    {
+                        throw new InvalidDataException("TGA pixel is outside of the colour map.");
+                    }
+                    return colourMap[bytes[index]];
+                case BYTE_TYPE_GREY:
+                    return unchecked((int)0xFF000000) | (bytes[index] << 16) | (bytes[index] << 8) | bytes[index];
+                default:
+                    return ReadColour(bytes, index, pixelDepth, hasAlpha);
+            }
+        }
+
+        /// <summary>
+        /// Colours are little endian BGR(A), or 5 bits a channel with the top bit as alpha at 15 and 16 bits.
+        /// </summary>
+        private static int ReadColour(byte[] bytes, int index, int depth, bool hasAlpha)
+        {
+            int alpha = 255;
+
+            switch (depth)
+            {
+                case 15:
+                case 16:
+                    int packed = bytes[index] | (bytes[index + 1] << 8);
+                    int red = (packed >> 10) & 0x1F;
+                    int green = (packed >> 5) & 0x1F;
+                    int blue = packed & 0x1F;
+
+                    if (hasAlpha && depth == 16 && (packed & 0x8000) == 0)
+                    {
+                        alpha = 0;
+                    }
+                    return (alpha << 24) | (((red << 3) | (red >> 2)) << 16) | (((green << 3) | (green >> 2)) << 8) | ((blue << 3) | (blue >> 2));
+                case 24:
+                    return unchecked((int)0xFF000000) | (bytes[index + 2] << 16) | (bytes[index + 1] << 8) | bytes[index];
+                default:
+                    if (hasAlpha)
+                    {
+                        alpha = bytes[index + 3];
+                    }
+                    return (alpha << 24) | (bytes[index + 2] << 16) | (bytes[index + 1] << 8) | bytes[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Drawing;
+using System.Drawing.Imaging;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// On-disk store of unpack results keyed on the sheet's pixels and the options that affect detection, so reopening
+    /// a sheet does not rescan it. The least recently used entries are deleted once the store grows past its size limit.
+    /// </summary>
+    public class UnpackCache
+    {
+        private const string STR_FILE_EXTENSION = ".boxes";
+        private const string STR_FILE_HEADER = "asu_unpack_cache 2";
+
+        private string directory;
+        private long maxBytes;
+        private object fileLock = new object();
+
+        public UnpackCache(string directory, long maxBytes)
+        {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+            System.IO.Directory.CreateDirectory(this.directory);
+        }
+
+        public static ulong HashPixels(Bitmap image)
+        {
+            ForkandBeard.Util.Text.XXHash64 hash = new ForkandBeard.Util.Text.XXHash64();
+            BitmapData data;
+            byte[] row = new byte[image.Width * 4];
+
+            data = image.LockBits(new Rectangle(0, 0, image.Width, image.Height), ImageLockMode.ReadOnly, PixelFormat.Format32bppArgb);
+            try
+            {
+                for (int y = 0; y < image.Height; y++)
+                {
+                    System.Runtime.InteropServices.Marshal.Copy(new IntPtr(data.Scan0.ToInt64() + ((long)y * data.Stride)), row, 0, row.Length);
+                    hash.Update(row, 0, row.Length);
+                }
+            }
+            finally
+            {
+                image.UnlockBits(data);
+            }
+
+            return hash.Digest();
+        }
+
+        public static string CreateKey(ulong pixelHash, Size size, int distanceBetweenTiles, bool removeTransparency, int alphaThreshold, int colourTolerance, bool detectUniformGrids)
+        {
+            return String.Format("{0:x16}_{1}x{2}_d{3}_t{4}_a{5}_c{6}_g{7}", pixelHash, size.Width, size.Height, distanceBetweenTiles, removeTransparency ? 1 : 0, alphaThreshold, colourTolerance, detectUniformGrids ? 1 : 0);
+        }
+
+        public bool TryLoad(string key, out Color backgroundColour, out int coloursCount, out List<Rectangle> boxes)
+        {
+            string path = this.GetPath(key);
+
+            backgroundColour = Color.Empty;
+            coloursCount = 0;
+            boxes = null;
+
+            lock ((this.fileLock))
+            {
+                if (!System.IO.File.Exists(path))
+                {
+                    return false;
+                }
+
+                try
+                {
+                    string[] lines = System.IO.File.ReadAllLines(path);
+                    List<Rectangle> loaded = new List<Rectangle>();
+
+                    if (lines.Length < 3 || lines[0] != STR_FILE_HEADER)
+                    {
+                        System.IO.File.Delete(path);
+                        return false;
+                    }
+
+                    for (int i = 3; i < lines.Length; i++)
+                    {
+                        string[] values = lines[i].Split(',');
+
+                        loaded.Add(new Rectangle(Convert.ToInt32(values[0]), Convert.ToInt32(values[1]), Convert.ToInt32(values[2]), Convert.ToInt32(values[3])));
+                    }
+
+                    backgroundColour = Color.FromArgb(Convert.ToInt32(lines[1]));
+                    coloursCount = Convert.ToInt32(lines[2]);
+                    boxes = loaded;
+
+                    // Last write time doubles as the last used time for eviction.
+                    System.IO.File.SetLastWriteTimeUtc(path, DateTime.UtcNow);
+                }
+                catch (Exception ignore)
+                {
+                    Console.WriteLine(ignore.ToString());
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        public void Save(string key, Color backgroundColour, int coloursCount, List<Rectangle> boxes)
+        {
+            StringBuilder contents = new StringBuilder();
+            string path = this.GetPath(key);
+            string tempPath = path + ".tmp";
+
+            contents.AppendLine(STR_FILE_HEADER);
+            contents.AppendLine(backgroundColour.ToArgb().ToString());
+            contents.AppendLine(coloursCount.ToString());
+            foreach (Rectangle box in boxes)
+            {
+                contents.AppendLine(String.Format("{0},{1},{2},{3}", box.X, box.Y, box.Width, box.Height));
+            }
+
+            lock ((this.fileLock))
+            {
+                try
+                {
+                    System.IO.File.WriteAllText(tempPath, contents.ToString());
+                    if (System.IO.File.Exists(path))
+                    {
+                        System.IO.File.Delete(path);
+                    }
+                    System.IO.File.Move(tempPath, path);
+                    this.Evict();
+                }
+                catch (Exception ignore)
+                {
+                    Console.WriteLine(ignore.ToString());
+                }
+            }
+        }
+
+        private void Evict()
+        {
+            SortedDictionary<DateTime, List<System.IO.FileInfo>> filesByLastUsed = new SortedDictionary<DateTime, List<System.IO.FileInfo>>();
+            long totalBytes = 0;
+
+            foreach (System.IO.FileInfo file in new System.IO.DirectoryInfo(this.directory).GetFiles("*" + STR_FILE_EXTENSION))
+            {
+                if (!filesByLastUsed.ContainsKey(file.LastWriteTimeUtc))
+                {
+                    filesByLastUsed.Add(file.LastWriteTimeUtc, new List<System.IO.FileInfo>());
+                }
+                filesByLastUsed[file.LastWriteTimeUtc].Add(file);
+                totalBytes += file.Length;
+            }
+
+            foreach (List<System.IO.FileInfo> files in filesByLastUsed.Values)
+            {
+                foreach (System.IO.FileInfo file in files)
+                {
+                    if (totalBytes <= this.maxBytes)
+                    {
+                        return;
+                    }
+                    totalBytes -= file.Length;
+                    file.Delete();
+                }
+            }
+        }
+
+        private string GetPath(string key)
+        {
+            return System.IO.Path.Combine(this.directory, key + STR_FILE_EXTENSION);
+        }
+    }
+}
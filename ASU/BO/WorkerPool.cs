@@ -0,0 +1,81 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+using System.Threading;
+
+namespace ASU.BO
+{
+    /// <summary>
+    /// A fixed number of background threads working through a queue, so however many jobs are queued only that many
+    /// run at once. The threads are started as the first jobs arrive and then kept for the life of the process.
+    /// Jobs must not wait on other jobs in the same pool, or they can end up waiting on something queued behind them.
+    /// </summary>
+    public class WorkerPool
+    {
+        private Queue<ThreadStart> jobs = new Queue<ThreadStart>();
+        private object jobsLock = new object();
+        private int workerCount;
+        private int workersStarted = 0;
+        private int workersIdle = 0;
+        private string name;
+
+        public WorkerPool(int workerCount, string name)
+        {
+            this.workerCount = Math.Max(1, workerCount);
+            this.name = name;
+        }
+
+        public void Queue(ThreadStart job)
+        {
+            Thread worker = null;
+
+            lock ((this.jobsLock))
+            {
+                this.jobs.Enqueue(job);
+                if (this.workersIdle > 0)
+                {
+                    Monitor.Pulse(this.jobsLock);
+                }
+                if (this.jobs.Count > this.workersIdle && this.workersStarted < this.workerCount)
+                {
+                    this.workersStarted += 1;
+                    worker = new Thread(this.Work);
+                }
+            }
+
+            if (worker != null)
+            {
+                worker.Name = this.name;
+                worker.IsBackground = true;
+                worker.Start();
+            }
+        }
+
+        private void Work()
+        {
+            ThreadStart job;
+
+            while (true)
+            {
+                lock ((this.jobsLock))
+                {
+                    while (this.jobs.Count == 0)
+                    {
+                        this.workersIdle += 1;
+                        Monitor.Wait(this.jobsLock);
+                        this.workersIdle -= 1;
+                    }
+                    job = this.jobs.Dequeue();
+                }
+
+                try
+                {
+                    job();
+                }
+                catch (Exception)
+                {   // Jobs report their own failures, this is only to keep the worker alive.
+                }
+            }
+        }
+    }
+}
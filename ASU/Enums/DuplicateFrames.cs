@@ -0,0 +1,9 @@
+﻿namespace ASU.Enums
+{
+    public enum DuplicateFrames
+    {
+        Write = 0
+        , Reference = 1
+        , HardLink = 2
+    }
+}
@@ -0,0 +1,10 @@
+﻿namespace ASU.Enums
+{
+    public enum ExportTarget
+    {
+        Frames = 0
+        , Atlas = 1
+        , Manifest = 2
+        , Archive = 3
+    }
+}
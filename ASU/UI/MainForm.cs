@@ -13,8 +13,11 @@ namespace ASU.UI
     {
         #region " Class Data "
         private const string STR_FORM_TITLE = "Alferd Spritesheet Unpacker ver.{0} {1}";
+        private const string STR_CONVERT_IMPORT_FILE_NAME = "asu_temp_spritesheet";
 
         private const int INT_REGION_WIDTHS = 200;
+        // The most pixels one int[] can hold within the runtime's 2GB limit on a single object.
+        private const long LONG_MAX_ATLAS_PIXELS = int.MaxValue / 4;
         private bool LoadingImage = false;
 
         private bool IsMouseDown;
@@ -22,6 +25,8 @@ namespace ASU.UI
 
         private Bitmap ZoomImage;
         private Bitmap OriginalImage = null;
+        // The sheet's size, which OriginalImage is smaller than when it is only a preview of a very large sheet.
+        private Size OriginalImageSize = Size.Empty;
         private Bitmap PaintedImage = null;
 
         private string OverlayText;
@@ -59,6 +64,25 @@ namespace ASU.UI
         public static bool AutoOpenDestinationFolder = true;
         public static bool MakeBackgroundTransparent = true;
         public static bool PreservePallette = false;
+        public static BO.UnpackCache UnpackCache = null;
+        public static bool DetectUniformGrids = true;
+        public static int AlphaThreshold = -1;
+        public static int BackgroundColourTolerance = 0;
+        public static int RawPixelStoreMegapixels = 0;
+        public static int ConverterMaxProcesses = 0;
+        public static int ConverterFilesPerProcess = 1;
+        public static string ConverterScratchDirectory;
+        public static long InMemoryStagingBytes = 0;
+        public static string ConvertImportPipedArgs = string.Empty;
+        public static string ExportNConvertPipedArgs = string.Empty;
+        public static string ExportNConvertFormat = string.Empty;
+        public static Enums.ExportTarget ExportTarget = Enums.ExportTarget.Frames;
+        public static string ExportManifestFormat = BO.FrameManifest.STR_FORMAT_JSON;
+        public static int ExportAtlasPadding = 1;
+        public static Enums.DuplicateFrames ExportDuplicateFrames = Enums.DuplicateFrames.Write;
+        public static bool ExportIncremental = true;
+        public static string ExportArchiveFormat = BO.FrameArchive.STR_FORMAT_ZIP;
+        public static bool ExportArchiveStoreOnly = false;
 
         private System.Threading.Timer multipleUnpackerTimer;
         #endregion
@@ -88,6 +112,32 @@ namespace ASU.UI
                 DistanceBetweenTiles = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["DistanceBetweenFrames"]);
                 MakeBackgroundTransparent = Convert.ToBoolean(System.Configuration.ConfigurationManager.AppSettings["ExportedOptionsMakeBackgroundTransparent"]);
                 PreservePallette = Convert.ToBoolean(System.Configuration.ConfigurationManager.AppSettings["PreservePallette"]);
+                DetectUniformGrids = Convert.ToBoolean(System.Configuration.ConfigurationManager.AppSettings["DetectUniformGrids"]);
+                AlphaThreshold = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["ForegroundAlphaThreshold"]);
+                BackgroundColourTolerance = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["BackgroundColourTolerance"]);
+                RawPixelStoreMegapixels = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["RawPixelStoreMinimumMegapixels"]);
+                ConverterMaxProcesses = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterMaxProcesses"]);
+                ConverterFilesPerProcess = Math.Max(1, Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterFilesPerProcess"]));
+                ConverterScratchDirectory = System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterScratchDirectory"];
+                if (string.IsNullOrEmpty(ConverterScratchDirectory))
+                {
+                    ConverterScratchDirectory = Environment.GetFolderPath(Environment.SpecialFolder.ApplicationData);
+                }
+                InMemoryStagingBytes = Convert.ToInt64(System.Configuration.ConfigurationManager.AppSettings["InMemoryStagingMaxMegabytes"]) * 1024L * 1024L;
+                ConvertImportPipedArgs = System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterCommandArgsConvertImportPiped"];
+                ExportTarget = (Enums.ExportTarget)Enum.Parse(typeof(Enums.ExportTarget), System.Configuration.ConfigurationManager.AppSettings["ExportTarget"], true);
+                ExportManifestFormat = System.Configuration.ConfigurationManager.AppSettings["ExportManifestFormat"];
+                ExportAtlasPadding = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["ExportAtlasPadding"]);
+                ExportDuplicateFrames = (Enums.DuplicateFrames)Enum.Parse(typeof(Enums.DuplicateFrames), System.Configuration.ConfigurationManager.AppSettings["ExportDuplicateFrames"], true);
+                ExportIncremental = Convert.ToBoolean(System.Configuration.ConfigurationManager.AppSettings["ExportIncremental"]);
+                ExportArchiveFormat = System.Configuration.ConfigurationManager.AppSettings["ExportArchiveFormat"];
+                ExportArchiveStoreOnly = Convert.ToBoolean(System.Configuration.ConfigurationManager.AppSettings["ExportArchiveStoreOnly"]);
+
+                int unpackCacheMegabytes = Convert.ToInt32(System.Configuration.ConfigurationManager.AppSettings["UnpackCacheMaxMegabytes"]);
+                if (unpackCacheMegabytes > 0)
+                {
+                    UnpackCache = new BO.UnpackCache(ForkandBeard.Logic.BAL.Paths.GetUserForkandBeardDataSubFolderPath("ASU_Unpack_Cache"), unpackCacheMegabytes * 1024L * 1024L);
+                }
 
                 Dictionary<string, System.Drawing.Imaging.ImageFormat> formats = new Dictionary<string, System.Drawing.Imaging.ImageFormat>();
                 formats.Add("png", System.Drawing.Imaging.ImageFormat.Png);
@@ -105,10 +155,31 @@ namespace ASU.UI
         }
 
         private List<BO.ImageUnpacker> unpackers = new List<BO.ImageUnpacker>();
+        // Guards unpackers, multipleUnpackerTimer and unpackersGeneration between the UI and the timer's callbacks.
+        private object unpackersLock = new object();
+        // Moved on by every cancel, so a timer callback already running for an earlier drop knows to leave the list alone.
+        private int unpackersGeneration = 0;
+
         private void CreateUnpacker(Bitmap image, string fileName)
         {
-            BO.ImageUnpacker unpacker;
+            this.PrepareForUnpacker();
+            lock ((this.unpackersLock))
+            {
+                this.unpackers.Add(new BO.ImageUnpacker(image, fileName, MakeBackgroundTransparent && !PreservePallette));
+            }
+        }
+
+        private void CreateUnpacker(string path, BO.ImageHeader header, string fileName)
+        {
+            this.PrepareForUnpacker();
+            lock ((this.unpackersLock))
+            {
+                this.unpackers.Add(new BO.ImageUnpacker(path, header, fileName, MakeBackgroundTransparent && !PreservePallette));
+            }
+        }
 
+        private void PrepareForUnpacker()
+        {
             this.OptionsPanel.Enabled = false;
             this.Boxes.Clear();
             this.Selected.Clear();
@@ -132,9 +203,25 @@ namespace ASU.UI
             this.UpdateTitlePc(0);
 
             this.ZoomPanel.Visible = false;
+        }
+
+        private void CancelUnpackers()
+        {
+            lock ((this.unpackersLock))
+            {
+                this.unpackersGeneration += 1;
+                if (this.multipleUnpackerTimer != null)
+                {   // A callback may still be running, the generation having moved on stops it touching the list.
+                    this.multipleUnpackerTimer.Dispose();
+                    this.multipleUnpackerTimer = null;
+                }
 
-            unpacker = new BO.ImageUnpacker(image, fileName, MakeBackgroundTransparent && !PreservePallette);
-            this.unpackers.Add(unpacker);
+                foreach (BO.ImageUnpacker unpacker in this.unpackers)
+                {
+                    unpacker.Dispose();
+                }
+                this.unpackers.Clear();
+            }
         }
 
         private void StartUnpackers()
@@ -150,7 +237,10 @@ namespace ASU.UI
                     this.ResetFormPostUnpack(null);
                     return;
                 }
-                this.multipleUnpackerTimer = new System.Threading.Timer(new System.Threading.TimerCallback(this.HandleOneOrMoreUnpackers), null, 0, 1000);
+                lock ((this.unpackersLock))
+                {   // The callbacks are handed the generation they belong to.
+                    this.multipleUnpackerTimer = new System.Threading.Timer(new System.Threading.TimerCallback(this.HandleOneOrMoreUnpackers), this.unpackersGeneration, 0, 1000);
+                }
             }
 
             this.LoadingImage = true;
@@ -158,20 +248,47 @@ namespace ASU.UI
             this.CheckForUnpackFinishTimer.Start();
         }
 
+        /// <summary>
+        /// Called straight from the UI for a single unpacker, with a null state, or from the timer's callbacks for many,
+        /// with the generation the timer was started for. Callbacks work on a copy of the list, so the UI is free to
+        /// cancel and start over while one is running.
+        /// </summary>
         private void HandleOneOrMoreUnpackers(object state)
         {
             try
             {
-                if (this.unpackers.Count == 1)
+                List<BO.ImageUnpacker> current;
+
+                lock ((this.unpackersLock))
+                {
+                    if (state != null && (int)state != this.unpackersGeneration)
+                    {   // Cancelled by a newer drop.
+                        return;
+                    }
+                    current = new List<BO.ImageUnpacker>(this.unpackers);
+                }
+
+                if (current.Count == 0)
                 {
-                    this.unpackers[0].StartUnpacking();
+                    return;
+                }
+                if (state == null && current.Count == 1)
+                {
+                    if (current[0].CanMerge())
+                    {   // Already scanned, only the merge depends on the options so skip straight to it.
+                        current[0].StartMerging();
+                    }
+                    else
+                    {
+                        current[0].StartUnpacking();
+                    }
                     return;
                 }
 
                 int countUnpacking = 0;
                 int countUnpacked = 0;
 
-                foreach (BO.ImageUnpacker unpacker in this.unpackers)
+                foreach (BO.ImageUnpacker unpacker in current)
                 {
                     if (unpacker.IsUnpacking() && !unpacker.IsUnpacked())
                     {
@@ -184,14 +301,33 @@ namespace ASU.UI
                     }
                 }
 
-                if (countUnpacked == this.unpackers.Count)
+                if (countUnpacked == current.Count)
                 {
                     bool oldPromptForDestinationFolder = PromptForDestinationFolder;
+
+                    lock ((this.unpackersLock))
+                    {   // Only the first callback to get here exports, and only if nothing newer has been dropped since.
+                        if (this.multipleUnpackerTimer == null || (int)state != this.unpackersGeneration)
+                        {
+                            return;
+                        }
+                        this.multipleUnpackerTimer.Dispose();
+                        this.multipleUnpackerTimer = null;
+                    }
                     PromptForDestinationFolder = false;
-                    this.multipleUnpackerTimer.Dispose();
 
-                    this.ExportUnpackers(this.unpackers);
-                    this.unpackers.Clear();
+                    this.ExportUnpackers(current);
+                    lock ((this.unpackersLock))
+                    {
+                        if ((int)state == this.unpackersGeneration)
+                        {
+                            this.unpackers.Clear();
+                        }
+                    }
+                    foreach (BO.ImageUnpacker unpacker in current)
+                    {   // Exported and done with, whether or not a newer drop has already cleared them out.
+                        unpacker.Dispose();
+                    }
                     PromptForDestinationFolder = oldPromptForDestinationFolder;
 
                     if (AutoOpenDestinationFolder)
@@ -200,24 +336,49 @@ namespace ASU.UI
                     }
                 }
                 else
-                {   // Ensure 2 are unpacking at one time (where multiple processors are available).
+                {
+                    List<BO.ImageUnpacker> waiting = new List<BO.ImageUnpacker>();
+
+                    foreach (BO.ImageUnpacker unpacker in current)
+                    {
+                        if (!unpacker.IsUnpacking() && !unpacker.IsUnpacked() && !unpacker.HasFailedToLoad())
+                        {
+                            waiting.Add(unpacker);
+                        }
+                    }
+
+                    // Decode the next few ahead of their turn, but not so many that they all sit in memory at once.
+                    for (int k = 0; k < waiting.Count && k < Math.Max(2, Environment.ProcessorCount); k++)
+                    {
+                        waiting[k].StartLoading();
+                    }
+
+                    // Ensure 2 are unpacking at one time (where multiple processors are available).
                     if (
+                        waiting.Count > 0
+                        && (
                             (
                             (Environment.ProcessorCount > 1)
                             && (countUnpacking < 2)
                             )
                         ||  (countUnpacking < 1)
                         )
+                        )
                     {
-                        foreach (BO.ImageUnpacker unpacker in this.unpackers)
+                        BO.ImageUnpacker next = waiting[0];
+
+                        foreach (BO.ImageUnpacker unpacker in waiting)
                         {
-                            if (!unpacker.IsUnpacking() && !unpacker.IsUnpacked())
-                            {
-                                unpacker.StartUnpacking();
-                                this.HandleOneOrMoreUnpackers(state);
-                                return;
+                            if (unpacker.IsLoaded())
+                            {   // Whichever finished decoding first can start straight away.
+                                next = unpacker;
+                                break;
                             }
                         }
+
+                        next.StartUnpacking();
+                        this.HandleOneOrMoreUnpackers(state);
+                        return;
                     }
                 }
             }
@@ -250,6 +411,219 @@ namespace ASU.UI
         }
 
 
+        /// <summary>
+        /// The unpacker's pallette, with the background entry made transparent to match the frames when that option is on.
+        /// </summary>
+        private Color[] CreateExportPallette(BO.ImageUnpacker unpacker)
+        {
+            Color[] entries = (Color[])unpacker.GetPallette().Entries.Clone();
+
+            if (MakeBackgroundTransparent && !unpacker.IsBackgroundTransparent())
+            {
+                for (int i = 0; i < entries.Length; i++)
+                {
+                    if (entries[i].ToArgb() == unpacker.GetBackgroundColour().ToArgb())
+                    {
+                        entries[i] = Color.FromArgb(entries[i].ToArgb() & 0x00FFFFFF);
+                    }
+                }
+            }
+
+            return entries;
+        }
+
+        /// <summary>
+        /// Atlases and archives are built from PNGs encoded in managed code, so can only be made when exporting plain PNG.
+        /// </summary>
+        public static bool CanExportTarget(Enums.ExportTarget target, System.Drawing.Imaging.ImageFormat format, string nconvertArgs)
+        {
+            if (target != Enums.ExportTarget.Atlas && target != Enums.ExportTarget.Archive)
+            {
+                return true;
+            }
+
+            return string.IsNullOrEmpty(nconvertArgs) && format != null && format.Equals(System.Drawing.Imaging.ImageFormat.Png);
+        }
+
+        /// <summary>
+        /// Packs the frames into one image and writes it alongside a manifest of where each frame is, in place of a file
+        /// per frame. Unless duplicates are to be written, identical frames are packed once and share a location. Atlases
+        /// too big to hold as one array are turned away before anything is written.
+        /// </summary>
+        private void ExportAtlas(BO.ImageUnpacker unpacker, List<Rectangle> boxes, BO.IPixelStore source, Color[] exportPallette, string outpath)
+        {
+            List<Rectangle> frameBoxes = new List<Rectangle>();
+            List<BO.PixelBuffer> frames = new List<BO.PixelBuffer>();
+            // For each frame, its index in the packed frames.
+            List<int> packedIndexes = new List<int>();
+            List<Size> sizes = new List<Size>();
+            BO.FrameDeduplicator deduplicator = new BO.FrameDeduplicator();
+            Point[] locations;
+            Size atlasSize;
+            BO.PixelBuffer atlas;
+            BO.FrameManifest manifest = new BO.FrameManifest(unpacker.FileName, unpacker.GetSize());
+            string atlasFileName = unpacker.FileName + ".png";
+            long framePixels = 0;
+
+            foreach (Rectangle box in boxes)
+            {
+                framePixels += (long)box.Width * box.Height;
+            }
+            if (ExportDuplicateFrames == Enums.DuplicateFrames.Write && framePixels > LONG_MAX_ATLAS_PIXELS)
+            {   // Every frame is packed, so the atlas can only be bigger still, no need to crop them to find out.
+                this.ShowAtlasTooBig(unpacker, framePixels);
+                return;
+            }
+
+            foreach (Rectangle box in boxes)
+            {
+                if (!box.IsEmpty)
+                {
+                    BO.PixelBuffer frame = source.Crop(box);
+                    int first = -1;
+
+                    if (MakeBackgroundTransparent && !unpacker.IsBackgroundTransparent())
+                    {
+                        frame.MakeTransparent(unpacker.GetBackgroundColour());
+                    }
+                    if (ExportDuplicateFrames != Enums.DuplicateFrames.Write)
+                    {
+                        first = deduplicator.FindOrAdd(frame, frames.Count);
+                    }
+
+                    frameBoxes.Add(box);
+                    if (first == -1)
+                    {
+                        packedIndexes.Add(frames.Count);
+                        frames.Add(frame);
+                        sizes.Add(box.Size);
+                    }
+                    else
+                    {
+                        packedIndexes.Add(first);
+                    }
+                }
+            }
+
+            locations = BO.AtlasPacker.Pack(sizes, ExportAtlasPadding, out atlasSize);
+            if ((long)atlasSize.Width * atlasSize.Height > LONG_MAX_ATLAS_PIXELS)
+            {
+                this.ShowAtlasTooBig(unpacker, (long)atlasSize.Width * atlasSize.Height);
+                return;
+            }
+            atlas = new BO.PixelBuffer(atlasSize.Width, atlasSize.Height);
+
+            for (int k = 0; k < frames.Count; k++)
+            {
+                atlas.Draw(frames[k], locations[k].X, locations[k].Y);
+            }
+            for (int k = 0; k < frameBoxes.Count; k++)
+            {
+                manifest.AddFrame(frameBoxes[k], locations[packedIndexes[k]]);
+            }
+
+            BO.PngWriter.Save(atlas, exportPallette, System.IO.Path.Combine(outpath, atlasFileName));
+            manifest.SetImage(atlasFileName, atlasSize);
+            manifest.Save(System.IO.Path.Combine(outpath, unpacker.FileName + "." + ExportManifestFormat.ToLower()), ExportManifestFormat);
+        }
+
+        private void ShowAtlasTooBig(BO.ImageUnpacker unpacker, long pixels)
+        {
+            MessageBox.Show(String.Format("The atlas for '{0}' would need at least {1:N0} pixels, more than fit in one image (at most {2:N0}). Nothing has been exported for it, export it as frames or an archive instead.", unpacker.FileName, pixels, LONG_MAX_ATLAS_PIXELS), "Atlas too big");
+        }
+
+        /// <summary>
+        /// Encodes the frames into one ZIP or TAR file, each written into it as soon as it is encoded, in place of a file
+        /// per frame.
+        /// </summary>
+        private void ExportArchive(BO.ImageUnpacker unpacker, List<Rectangle> boxes, BO.IPixelStore source, Color[] exportPallette, string outpath)
+        {
+            string archivePath = System.IO.Path.Combine(outpath, unpacker.FileName + "." + BO.FrameArchive.GetExtension(ExportArchiveFormat, ExportArchiveStoreOnly));
+            System.IO.MemoryStream encoded = new System.IO.MemoryStream();
+
+            try
+            {
+                using (BO.FrameArchive archive = new BO.FrameArchive(archivePath, ExportArchiveFormat, ExportArchiveStoreOnly))
+                {
+                    for (int k = 0; k < boxes.Count; k++)
+                    {
+                        if (!boxes[k].IsEmpty)
+                        {
+                            BO.PixelBuffer frame = source.Crop(boxes[k]);
+
+                            if (MakeBackgroundTransparent && !unpacker.IsBackgroundTransparent())
+                            {
+                                frame.MakeTransparent(unpacker.GetBackgroundColour());
+                            }
+                            encoded.SetLength(0);
+                            BO.PngWriter.Save(frame, exportPallette, encoded);
+                            archive.Add(String.Format("{0}.png", k.ToString()), encoded.GetBuffer(), (int)encoded.Length);
+                        }
+                    }
+                    archive.Finish();
+                }
+            }
+            catch (Exception)
+            {   // A part written archive is no use to anyone.
+                if (System.IO.File.Exists(archivePath))
+                {
+                    System.IO.File.Delete(archivePath);
+                }
+                throw;
+            }
+        }
+
+        /// <summary>
+        /// Writes just the frame rectangles and the sheet's details, for slicing the original sheet at load time.
+        /// </summary>
+        private void ExportManifest(BO.ImageUnpacker unpacker, List<Rectangle> boxes, string outpath)
+        {
+            BO.FrameManifest manifest = new BO.FrameManifest(unpacker.FileName, unpacker.GetSize());
+
+            foreach (Rectangle box in boxes)
+            {
+                if (!box.IsEmpty)
+                {
+                    manifest.AddFrame(box, box.Location);
+                }
+            }
+
+            manifest.Save(System.IO.Path.Combine(outpath, unpacker.FileName + "." + ExportManifestFormat.ToLower()), ExportManifestFormat);
+        }
+
+        /// <summary>
+        /// Moves whatever the converter wrote into the staging folder over to the export folder, leaving behind any of
+        /// the frames it was given. Returns how many files were moved.
+        /// </summary>
+        private int MoveConvertedFiles(BO.StagingDirectory staging, List<string> stagedFiles, string outpath)
+        {
+            Dictionary<string, bool> isStaged = new Dictionary<string, bool>(StringComparer.OrdinalIgnoreCase);
+            int movedCount = 0;
+
+            foreach (string stagedFile in stagedFiles)
+            {
+                isStaged[System.IO.Path.GetFileName(stagedFile)] = true;
+            }
+
+            foreach (string converted in System.IO.Directory.GetFiles(staging.Path))
+            {
+                string fileName = System.IO.Path.GetFileName(converted);
+                string destination = System.IO.Path.Combine(outpath, fileName);
+
+                if (!isStaged.ContainsKey(fileName))
+                {
+                    if (System.IO.File.Exists(destination))
+                    {
+                        System.IO.File.Delete(destination);
+                    }
+                    System.IO.File.Move(converted, destination);
+                    movedCount += 1;
+                }
+            }
+
+            return movedCount;
+        }
+
         private void SetHoverOverlayText()
         {
 	        this.SetOverlayText(
@@ -266,6 +640,10 @@ namespace ASU.UI
             {
                 colours = "999+";
             }
+            else if (this.unpackers[0].ColoursCount < 0)
+            {
+                colours = "n/a";
+            }
             else
             {
                 colours = this.unpackers[0].ColoursCount.ToString();
@@ -441,14 +819,10 @@ namespace ASU.UI
             object dropped = null;
             string[] droppedFileNames;
 
-            if (this.LoadingImage)
-            {
-                return;
-            }
-
             try
             {
-                this.unpackers.Clear();
+                // Anything still unpacking from a previous drop is abandoned rather than left running.
+                this.CancelUnpackers();
                 foreach (string objFormat in e.Data.GetFormats())
                 {
                     dropped = e.Data.GetData(objFormat);
@@ -460,6 +834,7 @@ namespace ASU.UI
                     {   // Dropped object is an array of string, so assume they are file names.
                         Bitmap image;
                         List<string> fileNames = null;
+                        List<string> fileNamesToConvert = new List<string>();
                         bool hasUserBeenPromptedToConvertFiles = false;
                         bool userOkToConvertFiles = true;
 
@@ -471,69 +846,43 @@ namespace ASU.UI
                         {
                             try
                             {
-                                image = new Bitmap(fileName);
-                                this.CreateUnpacker(image, System.IO.Path.GetFileNameWithoutExtension(fileName));
+                                BO.ImageHeader header = BO.ImageHeader.Probe(fileName);
+
+                                if (header != null)
+                                {   // Decoded when it comes to be unpacked, rather than all up front.
+                                    this.CreateUnpacker(fileName, header, System.IO.Path.GetFileNameWithoutExtension(fileName));
+                                }
+                                else
+                                {
+                                    image = new Bitmap(fileName);
+                                    this.CreateUnpacker(image, System.IO.Path.GetFileNameWithoutExtension(fileName));
+                                }
                             }
                             catch (ArgumentException)
                             {
-                                string args;
-                                string location;
-                                Process convertProcess;
-                                string tempFileName;
-                                string tempFileNameAndExtension;
-
                                 if (!hasUserBeenPromptedToConvertFiles)
                                 {
-                                    if (!this.SuppressThirdPartyWarningMessage)
-                                    {
-                                        userOkToConvertFiles = MessageBox.Show(
-                                                                                String.Format(
-                                                                                            @"You are trying to load a sprite sheet in a non-standard image file format. " 
-                                                                                            + @"This file will be converted to a common image format first using the third party command line tool '{0}'." 
-                                                                                            + @"{1}{1}Your operating system may request confirmation to execute {0}." 
-                                                                                            + @"{1}{1}If you'd like to use a different conversion utility then please do so by editing the 'app.config' file found here:{1}{2}" 
-                                                                                            + @"{1}{1}Do you want to continue and use '{0}'?"
-                                                                                            , BO.ThirdPartyPaths.GetThirdPartyConversionToolExecutableName()
-                                                                                            , Environment.NewLine
-                                                                                            , AppDomain.CurrentDomain.BaseDirectory + "\\app.config"
-                                                                                            )
-                                                                                , "Third Party Converter Warning" 
-                                                                                , MessageBoxButtons.YesNoCancel
-                                                                                , MessageBoxIcon.Warning
-                                                                                ) == System.Windows.Forms.DialogResult.Yes;
-
-                                        hasUserBeenPromptedToConvertFiles = true;
-                                        if (userOkToConvertFiles)
-                                        {
-                                            this.SuppressThirdPartyWarningMessage = true;
-                                        }
-                                    }
+                                    userOkToConvertFiles = this.ConfirmConvertImport();
+                                    hasUserBeenPromptedToConvertFiles = true;
                                 }
 
                                 if (userOkToConvertFiles)
-                                {
-                                    BO.RegionUnpacker.DeleteAllTempFiles();
-
-                                    tempFileName = String.Format("asu_temp_spritesheet_{0}", Guid.NewGuid().ToString().Replace("-", ""));
-                                    tempFileNameAndExtension = tempFileName + System.IO.Path.GetExtension(fileName);
-
-                                    System.IO.File.Copy(fileName, Environment.GetFolderPath(Environment.SpecialFolder.ApplicationData) + "\\" + tempFileNameAndExtension, true);
-
-                                    location = String.Format("\"{0}\\{1}", Environment.GetFolderPath(Environment.SpecialFolder.ApplicationData), tempFileNameAndExtension);
-                                    args = System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterCommandArgsConvertImportToBitmap"];
-                                    args = args.Replace("{temp}", location);
-
-                                    convertProcess = System.Diagnostics.Process.Start(ThirdPartyImageConverterPath, args);
-                                    convertProcess.WaitForExit();
-
-                                    location = String.Format("{0}\\{1}.bmp", Environment.GetFolderPath(Environment.SpecialFolder.ApplicationData), tempFileName);
-                                    image = new Bitmap(location);
-                                    this.CreateUnpacker(image, System.IO.Path.GetFileNameWithoutExtension(fileName));
+                                {   // Converted together once everything else dropped has been looked at.
+                                    fileNamesToConvert.Add(fileName);
                                 }
                             }
                             this.DragAndDropLabel.Visible = false;
                             this.ControlsHelpLabel.Visible = false;
                         }
+
+                        if (fileNamesToConvert.Count > 0)
+                        {
+                            this.ConvertAndCreateUnpackers(fileNamesToConvert);
+                        }
+                        if (this.unpackers.Count == 0)
+                        {
+                            return;
+                        }
                         this.StartUnpackers();
                         return;
                     }
@@ -549,6 +898,224 @@ namespace ASU.UI
             }
         }
 
+        /// <summary>
+        /// Asks before the third party converter is first used to import files, unless told not to.
+        /// </summary>
+        private bool ConfirmConvertImport()
+        {
+            bool isOk;
+
+            if (this.SuppressThirdPartyWarningMessage)
+            {
+                return true;
+            }
+
+            isOk = MessageBox.Show(
+                                    String.Format(
+                                                @"You are trying to load a sprite sheet in a non-standard image file format. " 
+                                                + @"This file will be converted to a common image format first using the third party command line tool '{0}'." 
+                                                + @"{1}{1}Your operating system may request confirmation to execute {0}." 
+                                                + @"{1}{1}If you'd like to use a different conversion utility then please do so by editing the 'app.config' file found here:{1}{2}" 
+                                                + @"{1}{1}Do you want to continue and use '{0}'?"
+                                                , BO.ThirdPartyPaths.GetThirdPartyConversionToolExecutableName()
+                                                , Environment.NewLine
+                                                , AppDomain.CurrentDomain.BaseDirectory + "\\app.config"
+                                                )
+                                    , "Third Party Converter Warning" 
+                                    , MessageBoxButtons.YesNoCancel
+                                    , MessageBoxIcon.Warning
+                                    ) == System.Windows.Forms.DialogResult.Yes;
+
+            if (isOk)
+            {
+                this.SuppressThirdPartyWarningMessage = true;
+            }
+
+            return isOk;
+        }
+
+        /// <summary>
+        /// Files which passed the header probe at the drop but could not be decoded when their turn came are taken out,
+        /// then converted or turned away just as they would have been at the drop.
+        /// </summary>
+        private void HandleFailedUnpackers()
+        {
+            List<string> fileNames = new List<string>();
+            bool isTimerRunning;
+
+            lock ((this.unpackersLock))
+            {
+                for (int k = this.unpackers.Count - 1; k >= 0; k--)
+                {
+                    if (this.unpackers[k].HasFailedToLoad())
+                    {
+                        fileNames.Insert(0, this.unpackers[k].FilePath);
+                        this.unpackers[k].Dispose();
+                        this.unpackers.RemoveAt(k);
+                    }
+                }
+                isTimerRunning = this.multipleUnpackerTimer != null;
+            }
+
+            if (fileNames.Count == 0)
+            {
+                return;
+            }
+
+            if (this.ConfirmConvertImport())
+            {
+                this.ConvertAndCreateUnpackers(fileNames);
+            }
+            else
+            {
+                MessageBox.Show(String.Format("The following are not in an image file format supported by ASU and have been skipped:{0}{0}{1}", Environment.NewLine, String.Join(Environment.NewLine, fileNames.ToArray())), "Unable to import file");
+            }
+
+            if (this.unpackers.Count == 0)
+            {
+                this.ResetFormPostUnpack(null);
+            }
+            else if (!isTimerRunning && this.unpackers.Count == 1 && !this.unpackers[0].IsUnpacking() && !this.unpackers[0].IsUnpacked())
+            {   // A single sheet is started straight off rather than by the timer.
+                this.HandleOneOrMoreUnpackers(null);
+            }
+        }
+
+        /// <summary>
+        /// Runs the third party converter over each file, several at once. Where the converter can work through pipes
+        /// and the file is small enough it never leaves memory, otherwise each file gets a staging folder of its own so
+        /// that no conversion can trip over another's files. The results are loaded into unpackers in drop order.
+        /// </summary>
+        private void ConvertAndCreateUnpackers(List<string> fileNames)
+        {
+            BO.ConverterPool converters = new BO.ConverterPool(ThirdPartyImageConverterPath, ConverterMaxProcesses);
+            BO.StagingDirectory[] workspaces = new BO.StagingDirectory[fileNames.Count];
+            Bitmap[] converted = new Bitmap[fileNames.Count];
+            List<byte[]> rented = new List<byte[]>();
+            List<string> failed = new List<string>();
+            string argsTemplate = System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterCommandArgsConvertImportToBitmap"];
+            long stagedBytes = 0;
+
+            try
+            {
+                for (int k = 0; k < fileNames.Count; k++)
+                {
+                    long length = new System.IO.FileInfo(fileNames[k]).Length;
+
+                    if (!string.IsNullOrEmpty(ConvertImportPipedArgs) && stagedBytes + length <= InMemoryStagingBytes)
+                    {
+                        byte[] input = BO.BufferPool.Rent((int)length);
+                        int index = k;
+                        int offset = 0;
+                        int read;
+
+                        rented.Add(input);
+                        stagedBytes += length;
+                        using (System.IO.FileStream stream = System.IO.File.OpenRead(fileNames[k]))
+                        {
+                            while (offset < length && (read = stream.Read(input, offset, (int)length - offset)) > 0)
+                            {
+                                offset += read;
+                            }
+                        }
+                        converters.QueuePiped(ConvertImportPipedArgs, input, (int)length, delegate(byte[] output, int outputLength)
+                        {
+                            converted[index] = this.LoadConvertedImage(output, outputLength);
+                        });
+                    }
+                    else
+                    {
+                        string location;
+
+                        workspaces[k] = new BO.StagingDirectory(ConverterScratchDirectory);
+                        location = workspaces[k].GetFilePath(STR_CONVERT_IMPORT_FILE_NAME + System.IO.Path.GetExtension(fileNames[k]));
+                        System.IO.File.Copy(fileNames[k], location, true);
+                        converters.Queue(argsTemplate.Replace("{temp}", String.Format("\"{0}\"", location)));
+                    }
+                }
+
+                converters.Run(null);
+
+                for (int k = 0; k < fileNames.Count; k++)
+                {
+                    if (workspaces[k] != null)
+                    {
+                        try
+                        {
+                            // Loaded into a copy, so the file is not held open when the workspace is deleted.
+                            using (Bitmap loaded = new Bitmap(workspaces[k].GetFilePath(STR_CONVERT_IMPORT_FILE_NAME + ".bmp")))
+                            {
+                                converted[k] = new Bitmap(loaded);
+                            }
+                        }
+                        catch (ArgumentException)
+                        {
+                            converted[k] = null;
+                        }
+                    }
+
+                    if (converted[k] == null)
+                    {
+                        failed.Add(System.IO.Path.GetFileName(fileNames[k]));
+                    }
+                    else
+                    {
+                        this.CreateUnpacker(converted[k], System.IO.Path.GetFileNameWithoutExtension(fileNames[k]));
+                    }
+                }
+            }
+            finally
+            {
+                foreach (BO.StagingDirectory workspace in workspaces)
+                {
+                    if (workspace != null)
+                    {
+                        workspace.Dispose();
+                    }
+                }
+                foreach (Bitmap image in converted)
+                {
+                    if (image != null)
+                    {
+                        image.Dispose();
+                    }
+                }
+                foreach (byte[] buffer in rented)
+                {
+                    BO.BufferPool.Return(buffer);
+                }
+            }
+
+            if (failed.Count > 0)
+            {
+                MessageBox.Show(String.Format("The following could not be converted by '{0}' and have been skipped:{1}{1}{2}", BO.ThirdPartyPaths.GetThirdPartyConversionToolExecutableName(), Environment.NewLine, String.Join(Environment.NewLine, failed.ToArray())), "Unable to import file");
+            }
+        }
+
+        /// <summary>
+        /// Null if the converter wrote nothing GDI+ can read.
+        /// </summary>
+        private Bitmap LoadConvertedImage(byte[] output, int length)
+        {
+            if (length == 0)
+            {
+                return null;
+            }
+
+            try
+            {
+                using (System.IO.MemoryStream stream = new System.IO.MemoryStream(output, 0, length))
+                using (Bitmap loaded = new Bitmap(stream))
+                {   // Copied, as a Bitmap needs its stream for as long as it lives.
+                    return new Bitmap(loaded);
+                }
+            }
+            catch (ArgumentException)
+            {
+                return null;
+            }
+        }
+
         private void MainPanel_DragEnter(object sender, System.Windows.Forms.DragEventArgs e)
         {
             e.Effect = DragDropEffects.Move;
@@ -737,6 +1304,7 @@ namespace ASU.UI
                     )
                 {
                     OriginalImage = this.unpackers[0].GetOriginalClone();
+                    OriginalImageSize = this.unpackers[0].GetSize();
                 }
 
                 if (OriginalImage != null)
@@ -749,6 +1317,8 @@ namespace ASU.UI
                             SheetWithBoxes = new Bitmap(OriginalImage);
                             boxGraphics = Graphics.FromImage(SheetWithBoxes);
                             boxGraphics.SmoothingMode = System.Drawing.Drawing2D.SmoothingMode.HighSpeed;
+                            // Boxes are in the sheet's coordinates, which only differ from the image's for a preview.
+                            boxGraphics.ScaleTransform((float)OriginalImage.Width / OriginalImageSize.Width, (float)OriginalImage.Height / OriginalImageSize.Height);
 
                             Pen zoomOutline;
                             zoomOutline = new Pen(Outline.Color, 1);
@@ -804,7 +1374,14 @@ namespace ASU.UI
                     {
                         graphics.Clear(Color.Black);
                     }
-                    graphics.DrawImage(SheetWithBoxes, this.Offset);
+                    if (SheetWithBoxes.Size == OriginalImageSize)
+                    {
+                        graphics.DrawImage(SheetWithBoxes, this.Offset);
+                    }
+                    else
+                    {   // A preview is stretched back up to the sheet's size, so everything drawn over it still lines up.
+                        graphics.DrawImage(SheetWithBoxes, new Rectangle(this.Offset, OriginalImageSize));
+                    }
 
                     Rectangle boxOffset;
 
@@ -992,7 +1569,6 @@ namespace ASU.UI
 
         private void ExportUnpackers(List<BO.ImageUnpacker> unpackers)
         {
-            string args = null;
             List<string> tempFiles = new List<string>();
             string outpath = null;
             bool hasUserBeenPromptedToConvertFiles = false;
@@ -1003,6 +1579,12 @@ namespace ASU.UI
 
             try
             {
+                if (!CanExportTarget(ExportTarget, ExportFormat, ExportNConvertArgs))
+                {   // Rather than quietly writing loose frames instead.
+                    MessageBox.Show(String.Format("The '{0}' export target can only write PNG frames. Choose PNG as the export format in the options, or change ExportTarget in the 'app.config' file found here:{1}{2}", ExportTarget, Environment.NewLine, AppDomain.CurrentDomain.BaseDirectory + "\\app.config"), "Export format not supported");
+                    return;
+                }
+
                 if (PromptForDestinationFolder)
                 {
                     this.FolderBrowserDialog1.SelectedPath = this.ExportLocationTextBox.Text;
@@ -1030,11 +1612,11 @@ namespace ASU.UI
 
                             outpath = this.ExportLocationTextBox.Text;
 
-                            Bitmap original;
-
-                            original = unpacker.GetOriginalClone();
+                            Bitmap original = null;
+                            // A manifest only export writes the rectangles, no pixels are needed.
+                            bool isEncoding = ExportTarget != Enums.ExportTarget.Manifest;
 
-                            if (!string.IsNullOrEmpty(ExportNConvertArgs))
+                            if (isEncoding && !string.IsNullOrEmpty(ExportNConvertArgs))
                             {
                                 if (!this.SuppressThirdPartyWarningMessage)
                                 {
@@ -1078,10 +1660,6 @@ namespace ASU.UI
                             if (!System.IO.Directory.Exists(outpath))
                                 System.IO.Directory.CreateDirectory(outpath);
 
-                            int preFileCount = 0;
-
-                            preFileCount = System.IO.Directory.GetFiles(outpath).Length;
-
                             if (unpackers.Count > 1)
                             {
                                 boxes = unpacker.GetBoxes();
@@ -1104,72 +1682,209 @@ namespace ASU.UI
                                 lapse = System.DateTime.Now;
                             }
 
-                            for (int k = 0; k <= boxes.Count - 1; k++)
+                            BO.IPixelStore source = null;
+                            Color[] exportPallette = null;
+                            BO.StagingDirectory staging = null;
+                            BO.ConverterPool converters = null;
+                            long stagedBytes = 0;
+                            int pipedCount = 0;
+                            int pipedConvertedCount = 0;
+
+                            if (isEncoding && !string.IsNullOrEmpty(ExportNConvertArgs))
+                            {
+                                converters = new BO.ConverterPool(ThirdPartyImageConverterPath, ConverterMaxProcesses);
+                                tempFiles.Clear();
+                            }
+
+                            if (isEncoding && string.IsNullOrEmpty(ExportNConvertArgs) && ExportFormat.Equals(System.Drawing.Imaging.ImageFormat.Png))
+                            {   // PNGs are cropped and encoded in managed code, keeping GDI+ out of the loop.
+                                source = unpacker.CreatePixelSource();
+                                if (PreservePallette && unpacker.GetPallette() != null)
+                                {
+                                    exportPallette = this.CreateExportPallette(unpacker);
+                                }
+                            }
+                            else if (isEncoding && !unpacker.IsOriginalPreview())
+                            {   // Very large sheets only have a preview, their frames are cropped from the decoded pixels.
+                                original = unpacker.GetOriginalClone();
+                            }
+
+                            if (!isEncoding)
+                            {
+                                this.ExportManifest(unpacker, boxes, outpath);
+                            }
+                            else if (source != null && ExportTarget == Enums.ExportTarget.Atlas)
+                            {
+                                this.ExportAtlas(unpacker, boxes, source, exportPallette, outpath);
+                            }
+                            else if (source != null && ExportTarget == Enums.ExportTarget.Archive)
+                            {
+                                this.ExportArchive(unpacker, boxes, source, exportPallette, outpath);
+                            }
+                            else
                             {
+                                BO.FrameDeduplicator deduplicator = null;
+                                BO.FrameManifest manifest = null;
+                                BO.ExportIndex exportIndex = null;
 
-                                if (!boxes[k].IsEmpty)
+                                if (source != null && ExportIncremental)
                                 {
-                                    Bitmap bitmap = new Bitmap(boxes[k].Width, boxes[k].Height, original.PixelFormat);
+                                    exportIndex = BO.ExportIndex.Load(outpath, BO.ExportIndex.CreateSettings(ExportFormat.ToString().ToLower(), exportPallette));
+                                }
 
-                                    using (Graphics objGraphics = Graphics.FromImage(bitmap))
-                                    {
-                                        objGraphics.DrawImage(original, new Rectangle(0, 0, bitmap.Width, bitmap.Height), boxes[k], GraphicsUnit.Pixel);
-                                        objGraphics.Dispose();
-                                    }
+                                if (source != null && ExportDuplicateFrames != Enums.DuplicateFrames.Write)
+                                {
+                                    deduplicator = new BO.FrameDeduplicator();
+                                }
+                                if (deduplicator != null && ExportDuplicateFrames == Enums.DuplicateFrames.Reference)
+                                {   // Duplicates have no file of their own, so the manifest is what says which file each frame is.
+                                    manifest = new BO.FrameManifest(unpacker.FileName, unpacker.GetSize());
+                                }
+
+                                for (int k = 0; k <= boxes.Count - 1; k++)
+                                {
 
-                                    if (PreservePallette)
+                                    if (!boxes[k].IsEmpty && source != null)
                                     {
-                                        if (unpacker.GetPallette() != null)
+                                        BO.PixelBuffer frame = source.Crop(boxes[k]);
+                                        string frameFileName = String.Format("{0}.{1}", k.ToString(), ExportFormat.ToString().ToLower());
+                                        string framePath = System.IO.Path.Combine(outpath, frameFileName);
+                                        ulong pixelHash = 0;
+                                        int first = -1;
+
+                                        if (MakeBackgroundTransparent && !unpacker.IsBackgroundTransparent())
                                         {
-                                            ImageQuantizers.PaletteQuantizer quantizer = default(ImageQuantizers.PaletteQuantizer);
-                                            Bitmap quantized = default(Bitmap);
-                                            quantizer = new ImageQuantizers.PaletteQuantizer(new System.Collections.ArrayList(unpacker.GetPallette().Entries));
-                                            quantized = quantizer.Quantize(bitmap);
-                                            bitmap.Dispose();
-                                            bitmap = quantized;
+                                            frame.MakeTransparent(unpacker.GetBackgroundColour());
                                         }
-                                    }
 
-                                    if (MakeBackgroundTransparent)
-                                    {
-                                        bitmap.MakeTransparent(unpacker.GetBackgroundColour());
-                                    }
+                                        if (deduplicator != null || exportIndex != null)
+                                        {
+                                            pixelHash = frame.HashPixels();
+                                        }
+                                        if (deduplicator != null)
+                                        {
+                                            first = deduplicator.FindOrAdd(frame, pixelHash, k);
+                                        }
 
-                                    if (string.IsNullOrEmpty(ExportNConvertArgs))
-                                    {
-                                        bitmap.Save(String.Format("{0}\\{1}.{2}", outpath, k.ToString(), ExportFormat.ToString().ToLower()), ExportFormat);
+                                        if (first != -1 && ExportDuplicateFrames == Enums.DuplicateFrames.Reference)
+                                        {   // The same pixels as an earlier frame, so its file is used in place of encoding them again.
+                                            frameFileName = String.Format("{0}.{1}", first.ToString(), ExportFormat.ToString().ToLower());
+                                        }
+                                        else if (exportIndex == null || !exportIndex.IsUnchanged(frameFileName, boxes[k], pixelHash))
+                                        {   // Frames written from the same rectangle and pixels last time are left as they are.
+                                            // Breaks any hard link an earlier export left, rather than writing through it into other frames.
+                                            System.IO.File.Delete(framePath);
+
+                                            if (first == -1 || !BO.FileLinks.TryCreateHardLink(framePath, System.IO.Path.Combine(outpath, String.Format("{0}.{1}", first.ToString(), ExportFormat.ToString().ToLower()))))
+                                            {
+                                                BO.PngWriter.Save(frame, exportPallette, framePath);
+                                            }
+                                            if (exportIndex != null)
+                                            {
+                                                exportIndex.Add(frameFileName, boxes[k], pixelHash);
+                                            }
+                                        }
+
+                                        if (manifest != null)
+                                        {
+                                            manifest.AddFrame(boxes[k], frameFileName);
+                                        }
                                     }
-                                    else
+                                    else if (!boxes[k].IsEmpty)
                                     {
-                                        string tempBitmapPath = null;
-                                        System.Diagnostics.ProcessStartInfo startInfo = null;
-                                        tempBitmapPath = String.Format("{0}\\{1}.png", outpath, k.ToString());
-                                        tempFiles.Add(tempBitmapPath);
-                                        bitmap.Save(tempBitmapPath, System.Drawing.Imaging.ImageFormat.Png);
-                                        args = ExportNConvertArgs.Replace("{file_name}", String.Format("\"{0}\\{1}.png\"", outpath, k.ToString()));
-
-                                        startInfo = new System.Diagnostics.ProcessStartInfo(ThirdPartyImageConverterPath, args);
-                                        startInfo.CreateNoWindow = true;
-                                        startInfo.UseShellExecute = true;
-                                        using (System.Diagnostics.Process objProcess = System.Diagnostics.Process.Start(startInfo))
+                                        Bitmap bitmap;
+
+                                        if (original != null)
                                         {
-                                            objProcess.WaitForExit();
-                                            if (System.DateTime.Now.Subtract(lapse).TotalSeconds > 10)
+                                            bitmap = new Bitmap(boxes[k].Width, boxes[k].Height, original.PixelFormat);
+
+                                            using (Graphics objGraphics = Graphics.FromImage(bitmap))
                                             {
-                                                if (MessageBox.Show("Export of frames is taking a while. Do you want to abort?", "Execessive Export Time", MessageBoxButtons.YesNo, MessageBoxIcon.Warning) == System.Windows.Forms.DialogResult.Yes)
+                                                objGraphics.DrawImage(original, new Rectangle(0, 0, bitmap.Width, bitmap.Height), boxes[k], GraphicsUnit.Pixel);
+                                                objGraphics.Dispose();
+                                            }
+                                        }
+                                        else
+                                        {
+                                            bitmap = unpacker.CreatePixelSource().Crop(boxes[k]).ToBitmap();
+                                        }
+
+                                        if (PreservePallette)
+                                        {
+                                            if (unpacker.GetPallette() != null)
+                                            {
+                                                ImageQuantizers.PaletteQuantizer quantizer = default(ImageQuantizers.PaletteQuantizer);
+                                                Bitmap quantized = default(Bitmap);
+                                                quantizer = new ImageQuantizers.PaletteQuantizer(new System.Collections.ArrayList(unpacker.GetPallette().Entries));
+                                                quantized = quantizer.Quantize(bitmap);
+                                                bitmap.Dispose();
+                                                bitmap = quantized;
+                                            }
+                                        }
+
+                                        if (MakeBackgroundTransparent && !unpacker.IsBackgroundTransparent())
+                                        {
+                                            bitmap.MakeTransparent(unpacker.GetBackgroundColour());
+                                        }
+
+                                        if (string.IsNullOrEmpty(ExportNConvertArgs))
+                                        {
+                                            bitmap.Save(String.Format("{0}\\{1}.{2}", outpath, k.ToString(), ExportFormat.ToString().ToLower()), ExportFormat);
+                                        }
+                                        else
+                                        {
+                                            System.IO.MemoryStream encoded = new System.IO.MemoryStream();
+
+                                            bitmap.Save(encoded, System.Drawing.Imaging.ImageFormat.Png);
+                                            if (!string.IsNullOrEmpty(ExportNConvertPipedArgs) && stagedBytes + encoded.Length <= InMemoryStagingBytes)
+                                            {   // Handed to the converter over a pipe, and its output written straight to outpath.
+                                                string convertedPath = String.Format("{0}\\{1}.{2}", outpath, k.ToString(), ExportNConvertFormat);
+
+                                                stagedBytes += encoded.Length;
+                                                pipedCount += 1;
+                                                converters.QueuePiped(ExportNConvertPipedArgs, encoded.GetBuffer(), (int)encoded.Length, delegate(byte[] output, int length)
                                                 {
-                                                    if (original != null)
+                                                    if (length > 0)
                                                     {
-                                                        original.Dispose();
+                                                        using (System.IO.FileStream file = new System.IO.FileStream(convertedPath, System.IO.FileMode.Create, System.IO.FileAccess.Write))
+                                                        {
+                                                            file.Write(output, 0, length);
+                                                        }
+                                                        pipedConvertedCount += 1;
                                                     }
-                                                    return;
+                                                });
+                                            }
+                                            else
+                                            {   // Too much is held in memory already, so this one goes through the scratch folder.
+                                                string tempBitmapPath;
+
+                                                if (staging == null)
+                                                {   // Frames are saved here for the converter, and its output moved to outpath after.
+                                                    staging = new BO.StagingDirectory(ConverterScratchDirectory);
                                                 }
-                                                lapse = System.DateTime.MaxValue;
+                                                tempBitmapPath = staging.GetFilePath(String.Format("{0}.png", k.ToString()));
+
+                                                tempFiles.Add(tempBitmapPath);
+                                                System.IO.File.WriteAllBytes(tempBitmapPath, encoded.ToArray());
                                             }
                                         }
+
+                                        bitmap.Dispose();
                                     }
+                                }
 
-                                    bitmap.Dispose();
+                                if (manifest != null)
+                                {
+                                    manifest.Save(System.IO.Path.Combine(outpath, unpacker.FileName + "." + ExportManifestFormat.ToLower()), ExportManifestFormat);
+                                }
+
+                                if (exportIndex != null)
+                                {   // Also deletes the frame files from the last export which this one did not write.
+                                    exportIndex.Save();
+                                }
+                                else
+                                {   // Frames written some other way would leave the index saying the wrong things.
+                                    BO.ExportIndex.Delete(outpath);
                                 }
                             }
 
@@ -1178,20 +1893,45 @@ namespace ASU.UI
                                 original.Dispose();
                             }
 
-                            if (tempFiles.Count > 0)
+                            if (converters != null)
                             {
-                                List<string> notConverted = new List<string>();
+                                int convertedCount;
+
+                                try
+                                {
+                                    // Many frames go to each run of the converter, rather than one process per frame.
+                                    converters.QueueBatches(ExportNConvertArgs, tempFiles, ConverterFilesPerProcess);
+                                    if (!converters.Run(delegate()
+                                        {
+                                            if (System.DateTime.Now.Subtract(lapse).TotalSeconds > 10)
+                                            {
+                                                if (MessageBox.Show("Export of frames is taking a while. Do you want to abort?", "Execessive Export Time", MessageBoxButtons.YesNo, MessageBoxIcon.Warning) == System.Windows.Forms.DialogResult.Yes)
+                                                {
+                                                    return true;
+                                                }
+                                                lapse = System.DateTime.MaxValue;
+                                            }
+                                            return false;
+                                        }))
+                                    {
+                                        return;
+                                    }
 
-                                foreach (string tempFile in tempFiles)
+                                    convertedCount = pipedConvertedCount;
+                                    if (staging != null)
+                                    {
+                                        convertedCount += this.MoveConvertedFiles(staging, tempFiles, outpath);
+                                    }
+                                }
+                                finally
                                 {
-                                    if (System.IO.File.Exists(tempFile))
+                                    if (staging != null)
                                     {
-                                        notConverted.Add(tempFile);
+                                        staging.Dispose();
                                     }
-                                    System.IO.File.Delete(tempFile);
                                 }
 
-                                if (notConverted.Count > 0 && System.IO.Directory.GetFiles(outpath).Length < (preFileCount + (tempFiles.Count * 2)))
+                                if (convertedCount < tempFiles.Count + pipedCount)
                                 {
                                     MessageBox.Show(String.Format("Exported files failed to be converted.{3}{3}Arguments used:{3}{0}{3}{3}Please see '{1}' documentation at {3}[{2}].", ExportNConvertArgs, BO.ThirdPartyPaths.GetThirdPartyConversionToolExecutableName(), BO.ThirdPartyPaths.GetThirdPartyConversionToolDirectory(), Environment.NewLine));
                                     return;
@@ -1332,7 +2072,7 @@ namespace ASU.UI
             {
                 if (Clipboard.ContainsImage())
                 {
-                    this.unpackers.Clear();
+                    this.CancelUnpackers();
                     this.DragAndDropLabel.Visible = false;
                     this.ControlsHelpLabel.Visible = false;
                     this.CreateUnpacker(new Bitmap(Clipboard.GetImage()), "clipboard");
@@ -1373,15 +2113,18 @@ namespace ASU.UI
         {
             int unpackedCount = 0;
 
-            foreach (BO.ImageUnpacker unpacker in this.unpackers)
+            lock ((this.unpackersLock))
             {
-                if (unpacker.IsUnpacked())
+                foreach (BO.ImageUnpacker unpacker in this.unpackers)
                 {
-                    unpackedCount += 1;
+                    if (unpacker.IsUnpacked())
+                    {
+                        unpackedCount += 1;
+                    }
                 }
-            }
 
-            return unpackedCount == this.unpackers.Count;
+                return unpackedCount == this.unpackers.Count;
+            }
         }
 
         private void ResetFormPostUnpack(BO.ImageUnpacker unpacker)
@@ -1430,6 +2173,12 @@ namespace ASU.UI
 
             try
             {
+                this.HandleFailedUnpackers();
+                if (this.unpackers.Count == 0)
+                {
+                    return;
+                }
+
                 if (this.unpackers.Count == 1)
                 {
                     unpacker = this.unpackers[0];
@@ -1511,7 +2260,7 @@ namespace ASU.UI
                         this.HyperModeUnpackingLabel.ForeColor = Color.FromArgb(this.Random.Next(150, 160), this.Random.Next(0, 100), this.Random.Next(100, 200));
                         this.HyperModeUnpacking1Label.ForeColor = Color.FromArgb(this.Random.Next(200, 256), this.Random.Next(200, 256), this.Random.Next(200, 210));
                     }
-                    else
+                    else if (!unpacker.HasFailedToLoad())
                     {
                         Rectangle randomRectangle;
                         
@@ -1572,6 +2321,7 @@ namespace ASU.UI
 
                 if (this.unpackers.Count == 1 && this.AreAllUnpacked())
                 {
+                    this.unpackers[0].Dispose();
                     this.unpackers.Clear();
                     this.ResetFormPostUnpack(null);
                 }
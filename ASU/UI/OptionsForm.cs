@@ -34,6 +34,12 @@ namespace ASU.UI
                 this.ExportFormatComboBox.Items.Add(System.Drawing.Imaging.ImageFormat.Tiff);
                 this.ExportFormatComboBox.Items.Add(System.Drawing.Imaging.ImageFormat.Jpeg);
                 this.ExportFormatComboBox.Items.Add(STR_ADVANCED_EXPORT_FILE_FORMAT);
+                if (!MainForm.CanExportTarget(MainForm.ExportTarget, null, null))
+                {   // Atlases and archives are PNG only, so nothing else is offered while one of them is the export target.
+                    this.ExportFormatComboBox.Items.Clear();
+                    this.ExportFormatComboBox.Items.Add(System.Drawing.Imaging.ImageFormat.Png);
+                    this.ExportFormatComboBox.Enabled = false;
+                }
                 this.CommandLineLabel.Text = this.CreateCommandLineArgs();
 
                 if (this.Main != null)
@@ -46,7 +52,11 @@ namespace ASU.UI
                     this.OutlineWidthUpDown.Value = Convert.ToDecimal(MainForm.Outline.Width);
                     this.PreservePalletteCheckBox.Checked = MainForm.PreservePallette;
 
-                    if (MainForm.ExportFormat != null)
+                    if (!this.ExportFormatComboBox.Enabled)
+                    {
+                        this.ExportFormatComboBox.SelectedIndex = 0;
+                    }
+                    else if (MainForm.ExportFormat != null)
                     {
                         this.ExportFormatComboBox.SelectedItem = MainForm.ExportFormat;
                     }
@@ -103,12 +113,15 @@ namespace ASU.UI
                     if (this.ExportFormatComboBox.Text != STR_ADVANCED_EXPORT_FILE_FORMAT)
                     {
                         MainForm.ExportNConvertArgs = string.Empty;
+                        MainForm.ExportNConvertPipedArgs = string.Empty;
                         MainForm.ExportFormat = (System.Drawing.Imaging.ImageFormat)this.ExportFormatComboBox.SelectedItem;
                     }
                     else
                     {
                         MainForm.ExportFormat = null;
                         MainForm.ExportNConvertArgs = this.CreateCommandLineArgs();
+                        MainForm.ExportNConvertPipedArgs = this.CreatePipedCommandLineArgs();
+                        MainForm.ExportNConvertFormat = this.NConvertArgsTextBox.Text;
                     }
 
                     if (MainForm.DistanceBetweenTiles != this.DistanceBetweenTilesUpDown.Value)
@@ -172,6 +185,21 @@ namespace ASU.UI
             return returnString;
         }
 
+        /// <summary>
+        /// Empty unless a piped form of the export arguments has been configured for the converter.
+        /// </summary>
+        private string CreatePipedCommandLineArgs()
+        {
+            string template = System.Configuration.ConfigurationManager.AppSettings["ThirdPartyImageConverterCommandArgsExportFormatPiped"];
+
+            if (string.IsNullOrEmpty(template))
+            {
+                return string.Empty;
+            }
+
+            return template.Replace("{text}", this.NConvertArgsTextBox.Text);
+        }
+
         private void ShowCommandLineArgsCheckBox_CheckedChanged(System.Object sender, System.EventArgs e)
         {
             this.CommandLineLabel.Visible = this.ShowCommandLineArgsCheckBox.Checked;
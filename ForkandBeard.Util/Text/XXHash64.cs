@@ -0,0 +1,165 @@
+﻿using System;
+using System.Collections.Generic;
+using System.Text;
+
+namespace ForkandBeard.Util.Text
+{
+    /// <summary>
+    /// Streaming xxHash64 (https://github.com/Cyan4973/xxHash). Non-cryptographic, but fast enough to hash
+    /// whole images where Hash.HashString is not.
+    /// </summary>
+    public class XXHash64
+    {
+        private const ulong PRIME_1 = 11400714785074694791UL;
+        private const ulong PRIME_2 = 14029467366897019727UL;
+        private const ulong PRIME_3 = 1609587929392839161UL;
+        private const ulong PRIME_4 = 9650029242287828579UL;
+        private const ulong PRIME_5 = 2870177450012600261UL;
+
+        private ulong seed;
+        private ulong v1;
+        private ulong v2;
+        private ulong v3;
+        private ulong v4;
+        private ulong totalLength = 0;
+        private byte[] buffer = new byte[32];
+        private int bufferLength = 0;
+
+        public XXHash64() : this(0)
+        {
+        }
+
+        public XXHash64(ulong seed)
+        {
+            this.seed = seed;
+            this.v1 = seed + PRIME_1 + PRIME_2;
+            this.v2 = seed + PRIME_2;
+            this.v3 = seed;
+            this.v4 = seed - PRIME_1;
+        }
+
+        public static ulong HashBytes(byte[] data)
+        {
+            XXHash64 hash = new XXHash64();
+            hash.Update(data, 0, data.Length);
+            return hash.Digest();
+        }
+
+        public void Update(int value)
+        {
+            this.Update(BitConverter.GetBytes(value), 0, 4);
+        }
+
+        public void Update(byte[] data, int offset, int count)
+        {
+            int end = offset + count;
+
+            this.totalLength += (ulong)count;
+
+            if (this.bufferLength + count < 32)
+            {
+                Buffer.BlockCopy(data, offset, this.buffer, this.bufferLength, count);
+                this.bufferLength += count;
+                return;
+            }
+
+            if (this.bufferLength > 0)
+            {   // Top up the partial stripe left over from the last update.
+                int fill = 32 - this.bufferLength;
+
+                Buffer.BlockCopy(data, offset, this.buffer, this.bufferLength, fill);
+                this.ProcessStripe(this.buffer, 0);
+                offset += fill;
+                this.bufferLength = 0;
+            }
+
+            while (offset + 32 <= end)
+            {
+                this.ProcessStripe(data, offset);
+                offset += 32;
+            }
+
+            if (offset < end)
+            {
+                Buffer.BlockCopy(data, offset, this.buffer, 0, end - offset);
+                this.bufferLength = end - offset;
+            }
+        }
+
+        public ulong Digest()
+        {
+            ulong hash;
+            int index = 0;
+
+            if (this.totalLength >= 32)
+            {
+                hash = RotateLeft(this.v1, 1) + RotateLeft(this.v2, 7) + RotateLeft(this.v3, 12) + RotateLeft(this.v4, 18);
+                hash = MergeRound(hash, this.v1);
+                hash = MergeRound(hash, this.v2);
+                hash = MergeRound(hash, this.v3);
+                hash = MergeRound(hash, this.v4);
+            }
+            else
+            {
+                hash = this.seed + PRIME_5;
+            }
+
+            hash += this.totalLength;
+
+            while (index + 8 <= this.bufferLength)
+            {
+                hash ^= Round(0, BitConverter.ToUInt64(this.buffer, index));
+                hash = (RotateLeft(hash, 27) * PRIME_1) + PRIME_4;
+                index += 8;
+            }
+
+            if (index + 4 <= this.bufferLength)
+            {
+                hash ^= BitConverter.ToUInt32(this.buffer, index) * PRIME_1;
+                hash = (RotateLeft(hash, 23) * PRIME_2) + PRIME_3;
+                index += 4;
+            }
+
+            while (index < this.bufferLength)
+            {
+                hash ^= this.buffer[index] * PRIME_5;
+                hash = RotateLeft(hash, 11) * PRIME_1;
+                index += 1;
+            }
+
+            hash ^= hash >> 33;
+            hash *= PRIME_2;
+            hash ^= hash >> 29;
+            hash *= PRIME_3;
+            hash ^= hash >> 32;
+
+            return hash;
+        }
+
+        private void ProcessStripe(byte[] data, int offset)
+        {
+            this.v1 = Round(this.v1, BitConverter.ToUInt64(data, offset));
+            this.v2 = Round(this.v2, BitConverter.ToUInt64(data, offset + 8));
+            this.v3 = Round(this.v3, BitConverter.ToUInt64(data, offset + 16));
+            this.v4 = Round(this.v4, BitConverter.ToUInt64(data, offset + 24));
+        }
+
+        private static ulong Round(ulong accumulator, ulong input)
+        {
+            accumulator += input * PRIME_2;
+            accumulator = RotateLeft(accumulator, 31);
+            return accumulator * PRIME_1;
+        }
+
+        private static ulong MergeRound(ulong accumulator, ulong value)
+        {
+            accumulator ^= Round(0, value);
+            return (accumulator * PRIME_1) + PRIME_4;
+        }
+
+        private static ulong RotateLeft(ulong value, int bits)
+        {
+            return (value << bits) | (value >> (64 - bits));
+        }
+    }
+}